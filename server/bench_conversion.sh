@@ -0,0 +1,47 @@
+#!/bin/bash
+# Times the ffmpeg commands the server runs for each conversion mode on a sample recording.
+# usage: bench_conversion.sh recording.webm [runs]
+#
+#   on-demand    LOWPASS_ON_DEMAND=true (the default): only the ogg is made at upload. The
+#                lowpass version is made from the ogg the first time a radio asks for it.
+#   single-pass  LOWPASS_ON_DEMAND=false: both files from one ffmpeg with a split graph
+#   two-pass     LOWPASS_ON_DEMAND=false CONVERSION_SINGLE_PASS=false: one ffmpeg per file
+set -e
+input=$1
+runs=${2:-5}
+if [ -z "$input" ]; then
+    echo "usage: $0 recording [runs]" >&2
+    exit 1
+fi
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+
+on_demand() {
+    ffmpeg -loglevel error -y -i "$input" -ar 44100 -f ogg "$out/a.ogg"
+}
+on_demand_lowpass() {
+    ffmpeg -loglevel error -y -i "$out/a.ogg" -af lowpass=f=400 -f ogg "$out/a-lowpass.ogg"
+}
+single_pass() {
+    ffmpeg -loglevel error -y -i "$input" \
+        -filter_complex "[0:a]aresample=44100,asplit=2[full][low];[low]lowpass=f=400[lowpass]" \
+        -map "[full]" -f ogg "$out/a.ogg" -map "[lowpass]" -f ogg "$out/a-lowpass.ogg"
+}
+two_pass() {
+    ffmpeg -loglevel error -y -i "$input" -ar 44100 -f ogg "$out/a.ogg"
+    ffmpeg -loglevel error -y -i "$input" -ar 44100 -af lowpass=f=400 -f ogg "$out/a-lowpass.ogg"
+}
+
+# Wall time and the CPU time of the ffmpeg processes, summed over all the runs
+measure() {
+    TIMEFORMAT="$(printf "%-18s" "$1") wall %2Rs  user %2Us  sys %2Ss"
+    time for _ in $(seq "$runs"); do
+        "$1"
+    done
+}
+
+echo "$runs runs of each on $input"
+measure on_demand
+measure on_demand_lowpass
+measure single_pass
+measure two_pass
@@ -1,30 +1,28 @@
 package fm.francoisefm;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import static java.util.Collections.emptyList;
 
 public class AllRecordingsServlet extends HttpServlet {
 
     private static final Logger LOG = Logger.getLogger("AllRecordingsServlet");
 
-    private static final Pattern AUDIO_CONTAINER = Pattern.compile("^audio/(\\w+)", Pattern.CASE_INSENSITIVE);
-
-    private static final int MAX_FILES_PER_USER = 100;
-    private static final int MAX_FILE_SIZE = 26214400; // 25mb max file size gives about 60 minutes recording
+    static final int MAX_FILE_SIZE = 26214400; // 25mb max file size gives about 60 minutes recording
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) {
@@ -50,42 +48,33 @@ public class AllRecordingsServlet extends HttpServlet {
         UserId userId = ServletHelper.getUserId(request);
         LOG.info("User id: " + userId);
 
-        File userDir = ServletHelper.getUserDir(userId);
-        File[] userFiles = userDir.listFiles();
-
         int frequency = StationsDb.calculateFrequency(userId);
 
-        List<File> ownUserFiles;
-        // Make sure we only look for files that match the logged-in user's name
-        if (userFiles == null) {
-            ownUserFiles = emptyList();
-        } else {
-            ownUserFiles = Arrays.stream(userFiles)
-                    .filter((f) -> f.getName().matches("^" + Pattern.quote(userId.sanitisedName()) + "_([0-9][0-9])\\.\\w+$"))
-                    .sorted(Comparator.comparingLong(File::lastModified))
-                    .toList();
-        }
-
-        // Important to set the content type before getting the PrintWriter
-        // so that it correctly infers the string encoding as utf-8
-        response.setContentType("application/json");
-        PrintWriter writer = response.getWriter();
-
-        writer.println("{");
-        writer.println("\"frequency\": \"" + formatFrequency(frequency) + "\",");
-        writer.println("\"files\": [");
+        List<RecordingInfo> recordings = StationsDb.getRecordings(userId);
 
-        if (!ownUserFiles.isEmpty()) {
-            // Awkward iteration through all but the last file
-            for (int i = 0; i < ownUserFiles.size() - 1; i++) {
-                writer.println("  \"/audio/" + userId.token + "/" + ownUserFiles.get(i).getName() + "\",");
-            }
-            // So that the last file does not include a comma
-            writer.println("  \"/audio/" + userId.token + "/" + ownUserFiles.get(ownUserFiles.size() - 1).getName() + "\"");
+        JsonWriter writer = new JsonWriter(1024);
+        writer.beginObject();
+        writer.name("frequency").value(formatFrequency(frequency));
+        writer.name("files").beginArray();
+        for (RecordingInfo recording : recordings) {
+            writer.value("/audio/" + userId.token + "/" + recording.file());
+        }
+        writer.endArray();
+        // Same order as files, with the length and format of each one once it's converted.
+        // files is kept as it is for older clients.
+        writer.name("recordings").beginArray();
+        for (RecordingInfo recording : recordings) {
+            writer.beginObject();
+            writer.name("file").value("/audio/" + userId.token + "/" + recording.file());
+            RadioManifest.writeOggInfo(writer, recording.oggInfo());
+            writer.endObject();
         }
+        writer.endArray();
+        writer.endObject();
 
-        writer.println("]");
-        writer.println("}");
+        response.setContentType("application/json;charset=utf-8");
+        response.setContentLength(writer.size());
+        writer.writeTo(response.getOutputStream());
 
         response.setStatus(HttpServletResponse.SC_OK);
     }
@@ -114,8 +103,7 @@ public class AllRecordingsServlet extends HttpServlet {
             LOG.log(Level.WARNING, "Error handling POST", e);
             response.setStatus(HttpServletResponse.SC_NOT_FOUND);
         }
-        long timeTaken = System.currentTimeMillis() - startTime;
-        LOG.info("POST (" + timeTaken + "ms): " + response.getStatus());
+        ServletHelper.logWhenComplete(LOG, "POST", startTime, request, response);
     }
 
     private void handlePost(HttpServletRequest request, HttpServletResponse response) throws IOException {
@@ -132,13 +120,79 @@ public class AllRecordingsServlet extends HttpServlet {
         LOG.info("Content type: " + contentType);
         LOG.info("Content length: " + request.getHeader("Content-Length"));
 
-        String fileExtension = getFileExtension(contentType);
-        File audioFile = getNewAudioFile(userId, fileExtension);
+        long contentLength = request.getContentLengthLong();
+        if (contentLength > MAX_FILE_SIZE) {
+            LOG.warning("Rejecting upload of " + contentLength + " bytes");
+            response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        if (ServletHelper.rejectIfConversionQueueFull(response)) {
+            return;
+        }
+
+        String fileExtension = ServletHelper.getFileExtension(contentType);
+        File audioFile = ServletHelper.getNewAudioFile(userId, fileExtension);
 
-        writeRequestStream(request.getInputStream(), audioFile);
+        // The body is read as it arrives so a slow upload doesn't hold a thread. It's written
+        // to a temp file and only moved into place once it's complete so nothing ever sees
+        // a partial recording.
+        File tempFile = Recording.uploadTempFile(audioFile);
+        LOG.info("Writing to " + tempFile.getAbsolutePath());
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            ServletHelper.RECORDING_SLOTS.release(userId.token, audioFile.getName());
+            throw e;
+        }
+        // If possible, start converting the file while it's being uploaded
+        StreamingConversion streamingConversion = ServletHelper.AUDIO_CONVERTER.startStreaming(audioFile, tempFile);
+        try {
+            AsyncContext asyncContext = request.startAsync();
+            // Slow clients are dealt with by the connector's idle timeout instead
+            asyncContext.setTimeout(0);
+            request.getInputStream().setReadListener(new UploadListener(asyncContext, request.getInputStream(), channel,
+                    userId, audioFile, tempFile, contentLength, streamingConversion));
+        } catch (IOException | RuntimeException e) {
+            discardUpload(userId, audioFile, tempFile, channel, streamingConversion);
+            if (request.isAsyncStarted()) {
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                request.getAsyncContext().complete();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Cleans up after an upload that won't be finished: stops converting it, deletes the
+     * temp file and frees the slot it was going to use
+     */
+    private void discardUpload(UserId userId, File audioFile, File tempFile, FileChannel channel, StreamingConversion streamingConversion) {
+        if (streamingConversion != null) {
+            streamingConversion.abort();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not close " + tempFile.getAbsolutePath(), e);
+        }
+        if (tempFile.exists() && !tempFile.delete()) {
+            LOG.warning("Could not delete partial upload " + tempFile.getAbsolutePath());
+        }
+        ServletHelper.RECORDING_SLOTS.release(userId.token, audioFile.getName());
+    }
 
-        LOG.info("Converting file to ogg: " + audioFile + " (file exists: " + audioFile.exists() + ")");
-        ServletHelper.AUDIO_CONVERTER.convertToOgg(audioFile);
+    private void finishUpload(HttpServletResponse response, UserId userId, File audioFile, StreamingConversion streamingConversion) {
+        ServletHelper.RECORDINGS_INDEX.refresh(audioFile);
+        StationsDb.addRecording(userId, Recording.slotOf(audioFile.getName()), audioFile);
+
+        if (streamingConversion != null) {
+            LOG.info("Finishing streaming conversion of " + audioFile);
+            streamingConversion.finish();
+        } else {
+            LOG.info("Converting file to ogg: " + audioFile);
+            ServletHelper.AUDIO_CONVERTER.convertToOgg(audioFile, AudioConverter.Priority.UPLOAD);
+        }
 
         response.setStatus(HttpServletResponse.SC_OK);
         response.setHeader("Location", "/audio/" + userId.token + "/" + urlEncode(audioFile.getName()));
@@ -148,38 +202,116 @@ public class AllRecordingsServlet extends HttpServlet {
         return URLEncoder.encode(name, StandardCharsets.UTF_8);
     }
 
-    private String getFileExtension(String contentType) {
-        if (contentType != null) {
-            Matcher matcher = AUDIO_CONTAINER.matcher(contentType);
-            if (matcher.find()) {
-                return "." + matcher.group(1);
-            }
+    /**
+     * Copies the request body to a temp file whenever the container has data for us, then
+     * moves it into place as the new audio file once the whole body has arrived.
+     */
+    private class UploadListener implements ReadListener {
+
+        private final AsyncContext asyncContext;
+        private final ServletInputStream inputStream;
+        private final FileChannel channel;
+        private final UserId userId;
+        private final File audioFile;
+        private final File tempFile;
+        private final long contentLength;
+        private final StreamingConversion streamingConversion;
+        private final byte[] buffer = new byte[65536];
+        private long bytesWritten;
+        private boolean finished;
+
+        UploadListener(AsyncContext asyncContext, ServletInputStream inputStream, FileChannel channel, UserId userId,
+                       File audioFile, File tempFile, long contentLength, StreamingConversion streamingConversion) {
+            this.asyncContext = asyncContext;
+            this.inputStream = inputStream;
+            this.channel = channel;
+            this.userId = userId;
+            this.audioFile = audioFile;
+            this.tempFile = tempFile;
+            this.contentLength = contentLength;
+            this.streamingConversion = streamingConversion;
         }
-        LOG.warning("Unrecognised contentType. Defaulting to .ogg.");
-        return ".ogg";
-    }
-
-    private void writeRequestStream(ServletInputStream inputStream, File audioFile) throws IOException {
-        byte[] buffer = new byte[10000];
 
-        LOG.info("Writing to " + audioFile.getAbsolutePath());
-
-        int bytesWritten = 0;
-        try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(audioFile))) {
-            while (!inputStream.isFinished()) {
+        @Override
+        public void onDataAvailable() throws IOException {
+            while (!finished && inputStream.isReady() && !inputStream.isFinished()) {
                 int bytesRead = inputStream.read(buffer);
                 if (bytesRead == -1) {
                     break;
                 }
-                bos.write(buffer, 0, bytesRead);
+                if (bytesWritten + bytesRead > MAX_FILE_SIZE) {
+                    // Only possible for chunked uploads as we check the Content-Length up front
+                    fail(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Tried to write more than maximum allowed file size");
+                    return;
+                }
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
                 bytesWritten += bytesRead;
-                if (bytesWritten >= MAX_FILE_SIZE) {
-                    LOG.warning("Tried to write more than maximum allowed file size");
-                    break;
+                if (streamingConversion != null) {
+                    streamingConversion.written(bytesWritten);
+                }
+            }
+        }
+
+        @Override
+        public void onAllDataRead() {
+            if (finished) {
+                return;
+            }
+            if (contentLength != -1 && bytesWritten != contentLength) {
+                fail(HttpServletResponse.SC_BAD_REQUEST, "Expected " + contentLength + " bytes but got " + bytesWritten);
+                return;
+            }
+            finished = true;
+            HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+            boolean moved = false;
+            try {
+                channel.close();
+                Files.move(tempFile.toPath(), audioFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                moved = true;
+                LOG.info("Finished writing " + bytesWritten + " bytes to " + audioFile.getAbsolutePath());
+                finishUpload(response, userId, audioFile, streamingConversion);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Error handling POST", e);
+                discardUpload(userId, audioFile, tempFile, channel, streamingConversion);
+                if (moved) {
+                    // Don't leave a recording behind in a slot that can now be given out again
+                    if (audioFile.exists() && !audioFile.delete()) {
+                        LOG.warning("Could not delete failed upload " + audioFile.getAbsolutePath());
+                    }
+                    ServletHelper.RECORDINGS_INDEX.remove(audioFile);
+                    try {
+                        StationsDb.deleteRecording(userId.token, audioFile.getName());
+                    } catch (Exception dbError) {
+                        LOG.log(Level.WARNING, "Could not remove failed upload " + audioFile + " from the db", dbError);
+                    }
                 }
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+            asyncContext.complete();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (finished) {
+                return;
             }
+            LOG.log(Level.WARNING, "Error reading upload after " + bytesWritten + " bytes", t);
+            fail(HttpServletResponse.SC_NOT_FOUND, "Upload failed");
+        }
+
+        /**
+         * Throws away a partial upload without converting it
+         */
+        private void fail(int status, String reason) {
+            finished = true;
+            LOG.warning(reason + ". Discarding " + tempFile.getAbsolutePath());
+            discardUpload(userId, audioFile, tempFile, channel, streamingConversion);
+            ((HttpServletResponse) asyncContext.getResponse()).setStatus(status);
+            asyncContext.complete();
         }
-        LOG.info("Finished writing " + bytesWritten + " bytes to " + audioFile.getAbsolutePath());
     }
 
     private void validatePath(HttpServletRequest request) {
@@ -189,15 +321,4 @@ public class AllRecordingsServlet extends HttpServlet {
         }
     }
 
-    private File getNewAudioFile(UserId userId, String fileExtension) {
-        File userDir = ServletHelper.getUserDir(userId);
-        String sanitisedUserName = userId.sanitisedName();
-        for (int i = 1; i < MAX_FILES_PER_USER; i++) {
-            File audioFile = new File(userDir, String.format(sanitisedUserName + "_%02d", i) + fileExtension);
-            if (!audioFile.exists()) {
-                return audioFile;
-            }
-        }
-        throw new AudioServerException("User has run out of available files: " + userId);
-    }
 }
\ No newline at end of file
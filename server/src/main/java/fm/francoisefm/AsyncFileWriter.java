@@ -0,0 +1,157 @@
+package fm.francoisefm;
+
+import org.eclipse.jetty.server.HttpOutput;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes a response body made of byte arrays and regions of a file using non-blocking
+ * servlet I/O. Nothing holds a thread while the client is slow to read: the container
+ * calls onWritePossible again once the socket can take more data.
+ * File regions are memory mapped in chunks (or sliced from a cached copy of the file) and
+ * handed to Jetty as ByteBuffers so they are never copied through the heap.
+ */
+class AsyncFileWriter implements WriteListener {
+
+    private static final Logger LOG = Logger.getLogger("AsyncFileWriter");
+
+    // Files are mapped and sent in chunks of up to this size
+    private static final long MAX_MAPPED_CHUNK = 16 * 1024 * 1024;
+    // Chunk size when the output stream isn't Jetty's and the data has to be copied
+    private static final int COPY_CHUNK = 64 * 1024;
+
+    private record Part(ByteBuffer bytes, long position, long length) { }
+
+    private final Path file;
+    private final ByteBuffer cached;
+    private final List<Part> parts = new ArrayList<>();
+
+    private AsyncContext asyncContext;
+    private ServletOutputStream outputStream;
+    private FileChannel channel;
+    private int partIndex;
+    private long partOffset;
+    private long bytesSent;
+    private long totalBytes;
+    private boolean finished;
+
+    /**
+     * @param cached the whole file from the cache, or null to read it from disk
+     */
+    AsyncFileWriter(Path file, ByteBuffer cached) {
+        this.file = file;
+        this.cached = cached;
+    }
+
+    AsyncFileWriter addBytes(byte[] bytes) {
+        parts.add(new Part(ByteBuffer.wrap(bytes), 0, bytes.length));
+        totalBytes += bytes.length;
+        return this;
+    }
+
+    AsyncFileWriter addFileRegion(long position, long length) {
+        parts.add(new Part(null, position, length));
+        totalBytes += length;
+        return this;
+    }
+
+    void start(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (cached == null) {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        }
+        outputStream = response.getOutputStream();
+        // The request might already be async if it was waiting for the file to be generated
+        asyncContext = request.isAsyncStarted() ? request.getAsyncContext() : request.startAsync();
+        // Slow clients are dealt with by the connector's idle timeout instead
+        asyncContext.setTimeout(0);
+        outputStream.setWriteListener(this);
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        while (outputStream.isReady()) {
+            ByteBuffer next = nextBuffer();
+            if (next == null) {
+                finish();
+                return;
+            }
+            bytesSent += next.remaining();
+            write(next);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (t instanceof EOFException || t.getCause() instanceof EOFException) {
+            // If the browser closes its connection, just return without error
+            LOG.warning("Browser closed connection after " + bytesSent + " of " + totalBytes + " bytes were transferred");
+        } else {
+            LOG.log(Level.WARNING, "Error sending " + file + " after " + bytesSent + " of " + totalBytes + " bytes", t);
+        }
+        finish();
+    }
+
+    private ByteBuffer nextBuffer() throws IOException {
+        while (partIndex < parts.size()) {
+            Part part = parts.get(partIndex);
+            long remaining = part.length() - partOffset;
+            if (remaining <= 0) {
+                partIndex++;
+                partOffset = 0;
+                continue;
+            }
+            if (part.bytes() != null) {
+                partOffset = part.length();
+                return part.bytes();
+            }
+            long position = part.position() + partOffset;
+            if (cached != null) {
+                partOffset = part.length();
+                return cached.duplicate().position((int) position).limit((int) (position + remaining));
+            }
+            long chunkSize = Math.min(outputStream instanceof HttpOutput ? MAX_MAPPED_CHUNK : COPY_CHUNK, remaining);
+            partOffset += chunkSize;
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, chunkSize);
+        }
+        return null;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        if (outputStream instanceof HttpOutput httpOutput) {
+            httpOutput.write(buffer);
+        } else {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            outputStream.write(bytes);
+        }
+    }
+
+    private void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Could not close " + file, e);
+            }
+        }
+        asyncContext.complete();
+    }
+}
@@ -4,9 +4,29 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -15,10 +35,194 @@ public class AudioConverter {
 
     private static final Logger LOG = Logger.getLogger("AudioConverter");
 
-    private final ExecutorService service;
+    // Containers that ffmpeg can decode from a pipe. mp4 can't be streamed as the index
+    // needed to decode it is often written at the end of the file.
+    private static final Set<String> STREAMABLE_EXTENSIONS = Set.of(".webm", ".ogg", ".mp3");
+
+    private static final long STATS_INTERVAL_MINUTES = 10;
+    private static final long REQUEUE_INTERVAL_MINUTES = 5;
+
+    /**
+     * Fresh uploads are converted before anything else in the queue so users hear their
+     * recordings quickly even while older recordings are being re-encoded in the background.
+     * Files generated on demand come first of all as there is a request waiting for them.
+     */
+    public enum Priority {
+        ON_DEMAND,
+        UPLOAD,
+        BACKGROUND
+    }
+
+    private abstract class Job implements Runnable, Comparable<Job> {
+
+        final Priority priority;
+        private final long sequence = AudioConverter.this.sequence.incrementAndGet();
+        private final long queuedTime = System.currentTimeMillis();
+
+        Job(Priority priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            // Highest priority first, then in the order they were queued
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+
+        @Override
+        public void run() {
+            long waitTime = System.currentTimeMillis() - queuedTime;
+            queuedJobs.get(priority).decrementAndGet();
+            totalWaitTime.addAndGet(waitTime);
+            maxWaitTime.accumulateAndGet(waitTime, Math::max);
+            execute(waitTime);
+            completedJobs.incrementAndGet();
+        }
+
+        abstract void execute(long waitTime);
+    }
+
+    private class ConversionJob extends Job {
+
+        private final File recording;
+
+        ConversionJob(File recording, Priority priority) {
+            super(priority);
+            this.recording = recording;
+        }
+
+        @Override
+        void execute(long waitTime) {
+            String token = recording.getParentFile().getName();
+            int attempt;
+            try {
+                attempt = StationsDb.markConverting(token, recording.getName());
+            } catch (Exception e) {
+                // Left unconverted in the db so queueUnconverted will try again
+                LOG.log(Level.SEVERE, "Could not start converting " + recording, e);
+                queuedRecordings.remove(recording);
+                return;
+            }
+            if (attempt == -1) {
+                LOG.info("Not converting " + recording + " as it has been deleted");
+                queuedRecordings.remove(recording);
+                return;
+            }
+            LOG.info("Converting " + recording + " (" + priority + ", attempt " + attempt + ") after waiting " + waitTime + "ms. " + getQueueDepth() + " still queued.");
+            long startTime = System.currentTimeMillis();
+            boolean converted = false;
+            try {
+                if (linkExistingConversion(recording)) {
+                    converted = true;
+                } else if (singlePass || lowpassOnDemand) {
+                    converted = replaceConvertedFiles(recording, convertAllToOgg(recording));
+                } else {
+                    converted = replaceConvertedFiles(recording,
+                            convertToOgg(recording.getAbsoluteFile(), convertPathToOgg(recording), false)
+                            && convertToOgg(recording.getAbsoluteFile(), convertPathToOggLowpass(recording), true));
+                }
+                finishConversion(recording, converted);
+            } catch(Exception e) {
+                LOG.log(Level.SEVERE, "Error calling ffmpeg", e);
+                replaceConvertedFiles(recording, false);
+                StationsDb.markFailed(token, recording.getName());
+            }
+            LOG.info("Finished converting " + recording + " in " + (System.currentTimeMillis() - startTime) + "ms");
+            if (!converted && attempt < maxAttempts) {
+                // Back off so a file that can't be converted doesn't use up all its attempts
+                // straight away
+                long delay = retryDelaySeconds << (attempt - 1);
+                LOG.info("Retrying conversion of " + recording + " in " + delay + "s");
+                scheduler.schedule(() -> enqueue(recording, Priority.BACKGROUND), delay, TimeUnit.SECONDS);
+            } else {
+                queuedRecordings.remove(recording);
+            }
+        }
+    }
+
+    private class LowpassJob extends Job {
+
+        private final File ogg;
+        private final CompletableFuture<Boolean> result;
+
+        LowpassJob(File ogg, CompletableFuture<Boolean> result) {
+            super(Priority.ON_DEMAND);
+            this.ogg = ogg;
+            this.result = result;
+        }
+
+        @Override
+        void execute(long waitTime) {
+            File lowpass = convertPathToLowpass(ogg);
+            LOG.info("Generating " + lowpass + " after waiting " + waitTime + "ms");
+            long startTime = System.currentTimeMillis();
+            boolean generated = false;
+            try {
+                generated = generateLowpass(ogg, lowpass);
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "Error generating " + lowpass, e);
+            } finally {
+                lowpassJobs.remove(lowpass);
+                result.complete(generated);
+            }
+            LOG.info("Finished generating " + lowpass + " in " + (System.currentTimeMillis() - startTime) + "ms");
+        }
+    }
+
+    private final ThreadPoolExecutor service;
+    private final ScheduledExecutorService scheduler;
+    private final int maxQueuedUploads;
+    private final int maxQueuedBackground;
+    private final long retryDelaySeconds;
+    // Recordings that are queued, being converted or waiting to be retried
+    private final Set<File> queuedRecordings = ConcurrentHashMap.newKeySet();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<Priority, AtomicInteger> queuedJobs = new EnumMap<>(Priority.class);
+    private final AtomicLong completedJobs = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+    private final int maxAttempts;
+    private final boolean singlePass;
+    private final boolean lowpassOnDemand;
+    private final Map<File, CompletableFuture<Boolean>> lowpassJobs = new ConcurrentHashMap<>();
+    private final ExecutorService streamingService;
+    private final boolean streamingEnabled;
+    private final Semaphore streamingSlots;
 
     public AudioConverter() {
-        service = Executors.newSingleThreadExecutor();
+        int workers = Integer.parseInt(ServletHelper.PROPERTIES.getProperty("CONVERSION_WORKERS",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        maxQueuedUploads = Integer.parseInt(ServletHelper.PROPERTIES.getProperty("CONVERSION_QUEUE_SIZE", "100"));
+        maxQueuedBackground = Integer.parseInt(ServletHelper.PROPERTIES.getProperty("CONVERSION_BACKGROUND_QUEUE_SIZE", "1000"));
+        retryDelaySeconds = Long.parseLong(ServletHelper.PROPERTIES.getProperty("CONVERSION_RETRY_DELAY_SECONDS", "60"));
+        AtomicInteger threadCount = new AtomicInteger();
+        // Jobs are passed to execute() rather than submit() so the queue can compare them
+        service = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+                r -> new Thread(r, "AudioConverter-" + threadCount.incrementAndGet()));
+        for (Priority priority : Priority.values()) {
+            queuedJobs.put(priority, new AtomicInteger());
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "AudioConverter-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maxAttempts = Integer.parseInt(ServletHelper.PROPERTIES.getProperty("CONVERSION_MAX_ATTEMPTS", "3"));
+        // Only the ogg is made up front by default, so there is just one output. Choosing
+        // between one or two ffmpeg passes only matters with LOWPASS_ON_DEMAND=false.
+        singlePass = Boolean.parseBoolean(ServletHelper.PROPERTIES.getProperty("CONVERSION_SINGLE_PASS", "true"));
+        lowpassOnDemand = Boolean.parseBoolean(ServletHelper.PROPERTIES.getProperty("LOWPASS_ON_DEMAND", "true"));
+        LOG.info("Converting with " + workers + " workers. " + (lowpassOnDemand
+                ? "Lowpass files are made on demand."
+                : "Lowpass files are made up front in " + (singlePass ? "one ffmpeg pass." : "a second ffmpeg pass.")));
+        streamingService = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "StreamingConversion");
+            thread.setDaemon(true);
+            return thread;
+        });
+        streamingEnabled = Boolean.parseBoolean(ServletHelper.PROPERTIES.getProperty("STREAMING_CONVERSION", "false"));
+        streamingSlots = new Semaphore(Integer.parseInt(ServletHelper.PROPERTIES.getProperty("STREAMING_CONVERSION_MAX", "4")));
         try {
             LOG.addHandler(new FileHandler("logs/ffmpeg.log"));
             LOG.setUseParentHandlers(false);
@@ -46,37 +250,426 @@ public class AudioConverter {
         return convertPathTo(recording, "-lowpass.ogg");
     }
 
-    public void convertToOgg(File recording) {
-        service.submit(() -> {
+    /**
+     * The lowpass version of a converted ogg file
+     */
+    public static File convertPathToLowpass(File ogg) {
+        String name = ogg.getName();
+        return new File(ogg.getParentFile(), name.substring(0, name.length() - ".ogg".length()) + "-lowpass.ogg");
+    }
+
+    /**
+     * The converted ogg file that a lowpass file is made from, or null if it isn't a lowpass file
+     */
+    public static File lowpassSource(File lowpass) {
+        String name = lowpass.getName();
+        if (!name.endsWith("-lowpass.ogg")) {
+            return null;
+        }
+        return new File(lowpass.getParentFile(), name.substring(0, name.length() - "-lowpass.ogg".length()) + ".ogg");
+    }
+
+    public boolean isLowpassOnDemand() {
+        return lowpassOnDemand;
+    }
+
+    /**
+     * Queues a recording to be converted unless it's already queued. An upload goes in as a
+     * background job if too many uploads are already waiting. If the background backlog is
+     * full too it isn't queued now. It stays unconverted in the db, and the periodic
+     * queueUnconverted picks it up once there's room.
+     */
+    public void convertToOgg(File recording, Priority priority) {
+        if (queuedRecordings.add(recording)) {
+            enqueue(recording, priority);
+        }
+    }
+
+    private void enqueue(File recording, Priority priority) {
+        if (priority == Priority.UPLOAD && isQueueFull()) {
+            LOG.warning("Too many uploads waiting. Converting " + recording + " in the background.");
+            priority = Priority.BACKGROUND;
+        }
+        if (priority == Priority.BACKGROUND && queuedJobs.get(Priority.BACKGROUND).get() >= maxQueuedBackground) {
+            LOG.warning("Background conversion queue is full. Leaving " + recording + " for later.");
+            queuedRecordings.remove(recording);
+            return;
+        }
+        queuedJobs.get(priority).incrementAndGet();
+        service.execute(new ConversionJob(recording, priority));
+    }
+
+    /**
+     * Generates the lowpass version of a converted ogg file. If it is already being generated
+     * the caller gets the same result as everyone else waiting for it rather than starting
+     * another ffmpeg. Completes with false if it couldn't be generated.
+     */
+    public CompletableFuture<Boolean> generateLowpass(File ogg) {
+        File lowpass = convertPathToLowpass(ogg);
+        AtomicBoolean created = new AtomicBoolean();
+        CompletableFuture<Boolean> result = lowpassJobs.computeIfAbsent(lowpass, f -> {
+            created.set(true);
+            return new CompletableFuture<>();
+        });
+        if (created.get()) {
+            queuedJobs.get(Priority.ON_DEMAND).incrementAndGet();
+            service.execute(new LowpassJob(ogg, result));
+        }
+        return result;
+    }
+
+    /**
+     * Queues every recording that hasn't been converted yet and isn't already queued.
+     * Conversion state is kept in the db so this picks up anything that was queued or in
+     * progress when the server stopped, failed conversions that still have attempts left,
+     * and anything left out earlier because the background queue was full.
+     */
+    public void queueUnconverted() {
+        int queued = 0;
+        for (RecordingInfo recording : StationsDb.getRecordingsToConvert(maxAttempts)) {
+            if (queuedJobs.get(Priority.BACKGROUND).get() >= maxQueuedBackground) {
+                break;
+            }
+            File file = ServletHelper.RECORDINGS.resolve(recording.token()).resolve(recording.file()).toFile();
+            if (queuedRecordings.add(file)) {
+                enqueue(file, Priority.BACKGROUND);
+                queued++;
+            }
+        }
+        if (queued > 0) {
+            LOG.info("Queued " + queued + " unconverted recordings");
+        }
+    }
+
+    /**
+     * Queues unconverted recordings now and then every few minutes, to pick up any that
+     * didn't fit in the background queue
+     */
+    public void startQueueingUnconverted() {
+        scheduler.scheduleWithFixedDelay(this::queueUnconverted, 0, REQUEUE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * True if there are already too many uploads waiting to be converted. New uploads should
+     * be turned away until the queue has gone down. Background jobs don't count towards this
+     * as uploads jump ahead of them anyway.
+     */
+    public boolean isQueueFull() {
+        return queuedJobs.get(Priority.UPLOAD).get() >= maxQueuedUploads;
+    }
+
+    public int getQueueDepth() {
+        return service.getQueue().size();
+    }
+
+    public void startStats() {
+        scheduler.scheduleWithFixedDelay(this::logStats, STATS_INTERVAL_MINUTES, STATS_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    private void logStats() {
+        long completed = completedJobs.get();
+        long averageWait = completed == 0 ? 0 : totalWaitTime.get() / completed;
+        LOG.info("Conversion queue: " + queuedJobs.get(Priority.UPLOAD).get() + " uploads and " +
+                queuedJobs.get(Priority.BACKGROUND).get() + " background jobs queued, " + service.getActiveCount() +
+                " running. " + completed + " done with average wait " + averageWait + "ms, max " + maxWaitTime.get() + "ms");
+    }
+
+    /**
+     * Starts converting a recording that is about to be uploaded, with ffmpeg reading the
+     * upload as it arrives. Returns null if streaming conversion is turned off, the format
+     * can't be streamed or too many are already running, in which case the recording should
+     * be converted with convertToOgg once it has been uploaded.
+     */
+    public StreamingConversion startStreaming(File recording, File uploadFile) {
+        if (!streamingEnabled || !STREAMABLE_EXTENSIONS.contains(getExtension(recording))) {
+            return null;
+        }
+        if (!streamingSlots.tryAcquire()) {
+            LOG.info("Too many streaming conversions. Converting " + recording + " after upload.");
+            return null;
+        }
+        FileChannel upload = null;
+        try {
+            upload = FileChannel.open(uploadFile.toPath(), StandardOpenOption.READ);
+            File ogg = convertPathToOgg(recording);
+            File lowpass = convertPathToOggLowpass(recording);
+            ogg.getParentFile().mkdirs();
+            // One ffmpeg process writes both outputs as the input can only be read once
+            String[] cmd = ffmpegCommand(conversionArgs("pipe:0", ogg, lowpass));
+            Process process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+            // Counted as queued so queueUnconverted doesn't convert it again at the same time
+            queuedRecordings.add(recording);
+            StreamingConversion conversion = new StreamingConversion(this, recording, upload, process);
+            streamingService.submit(conversion::logOutput);
+            streamingService.submit(() -> {
+                try {
+                    conversion.run();
+                } finally {
+                    streamingSlots.release();
+                }
+            });
+            return conversion;
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not start streaming conversion of " + recording, e);
+            closeQuietly(upload);
+            streamingSlots.release();
+            return null;
+        }
+    }
+
+    /**
+     * Called when a streaming conversion is over. If it failed the recording is queued for a
+     * normal conversion, subject to the same limits as any other upload.
+     */
+    void finishStreaming(File recording, boolean queueConversion) {
+        if (queueConversion) {
+            enqueue(recording, Priority.UPLOAD);
+        } else {
+            queuedRecordings.remove(recording);
+        }
+    }
+
+    void finishConversion(File recording, boolean converted) {
+        String token = recording.getParentFile().getName();
+        File ogg = convertPathToOgg(recording);
+        File lowpass = convertPathToOggLowpass(recording);
+        if (lowpassOnDemand && lowpass.exists() && lowpass.lastModified() < ogg.lastModified()) {
+            // Made from an earlier upload so it will be generated again when it's next needed
+            deleteOutOfDateLowpass(recording);
+        }
+        ServletHelper.CONVERTED_INDEX.refresh(ogg);
+        ServletHelper.CONVERTED_INDEX.refresh(lowpass);
+        ServletHelper.AUDIO_FILE_CACHE.invalidate(ogg.toPath());
+        ServletHelper.AUDIO_FILE_CACHE.invalidate(lowpass.toPath());
+        try {
+            if (converted) {
+                StationsDb.setSourceHash(token, recording.getName(), FileHashes.md5(recording.toPath()));
+                FileHash oggHash = store(ogg);
+                recordOggInfo(token, recording.getName(), ogg);
+                // The lowpass version won't exist yet if it's made on demand
+                FileHash lowpassHash = lowpass.exists() ? store(lowpass) : null;
+                StationsDb.markConverted(token, recording.getName(),
+                        relativeToConverted(ogg), oggHash.md5(),
+                        lowpassHash == null ? null : relativeToConverted(lowpass),
+                        lowpassHash == null ? null : lowpassHash.md5());
+            } else {
+                StationsDb.markFailed(token, recording.getName());
+            }
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Error recording conversion of " + recording, e);
+            StationsDb.markFailed(token, recording.getName());
+        }
+    }
+
+    private static void deleteOutOfDateLowpass(File recording) {
+        File lowpass = convertPathToOggLowpass(recording);
+        if (!deleteConvertedFile(lowpass)) {
+            LOG.warning("Could not delete out of date " + lowpass);
+        }
+        StationsDb.markLowpassDeleted(recording.getParentFile().getName(), recording.getName());
+    }
+
+    /**
+     * Deletes a converted file and forgets its hash, cached contents and index entry. Its
+     * copy in the content store goes too if nothing else links to it. Returns false if the
+     * file couldn't be deleted, including if it didn't exist.
+     */
+    static boolean deleteConvertedFile(File convertedFile) {
+        Path path = convertedFile.toPath();
+        String digest = FileHashes.cachedSha256(path);
+        boolean deleted = convertedFile.delete();
+        FileHashes.forget(path);
+        ContentStore.release(digest);
+        ServletHelper.AUDIO_FILE_CACHE.invalidate(path);
+        ServletHelper.CONVERTED_INDEX.remove(convertedFile);
+        return deleted;
+    }
+
+    /**
+     * Reads the length and format of a converted file and saves them against the recording
+     */
+    static void recordOggInfo(String token, String file, File ogg) {
+        try {
+            OggInfo oggInfo = OggInfo.read(ogg.toPath());
+            StationsDb.setOggInfo(token, file, oggInfo);
+            LOG.info("Read " + ogg + ": " + oggInfo);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Could not read the ogg headers of " + ogg, e);
+        }
+    }
+
+    /**
+     * Hashes a newly converted file and adds it to the content store
+     */
+    private static FileHash store(File convertedFile) {
+        FileHash fileHash = FileHashes.update(convertedFile.toPath());
+        try {
+            ContentStore.add(convertedFile.toPath(), fileHash.sha256());
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not add " + convertedFile + " to the store", e);
+        }
+        return fileHash;
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
             try {
-                convertToOgg(recording.getAbsoluteFile(), convertPathToOgg(recording), false);
-                convertToOgg(recording.getAbsoluteFile(), convertPathToOggLowpass(recording), true);
-            } catch(Exception e) {
-                LOG.log(Level.SEVERE, "Error calling ffmpeg", e);
+                channel.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Could not close file", e);
             }
-        });
+        }
+    }
+
+    private static String getExtension(File file) {
+        int extensionIndex = file.getName().lastIndexOf(".");
+        return extensionIndex == -1 ? "" : file.getName().substring(extensionIndex).toLowerCase();
+    }
+
+    private static String[] ffmpegCommand(String... args) {
+        List<String> cmd = new ArrayList<>();
+        if (System.getProperty("os.name").startsWith("Windows")) {
+            cmd.add("wsl");
+        }
+        cmd.add("ffmpeg");
+        cmd.addAll(List.of(args));
+        return cmd.toArray(String[]::new);
     }
 
-    private void convertToOgg(File fileIn, File fileOut, boolean lowpass) throws IOException {
+    public static String relativeToConverted(File convertedFile) {
+        return ServletHelper.CONVERTED.relativize(convertedFile.toPath()).toString();
+    }
+
+    /**
+     * If an identical file has already been uploaded and converted, links to its converted
+     * files rather than converting it again. Returns false if it needs converting.
+     */
+    private boolean linkExistingConversion(File recording) {
+        Optional<RecordingInfo> existing = StationsDb.getConvertedRecordingBySource(FileHashes.md5(recording.toPath()));
+        if (existing.isEmpty() || (existing.get().lowpassFile() == null && !lowpassOnDemand)) {
+            return false;
+        }
+        try {
+            File ogg = convertPathToOgg(recording);
+            ogg.getParentFile().mkdirs();
+            File lowpass = convertPathToOggLowpass(recording);
+            ContentStore.link(ServletHelper.CONVERTED.resolve(existing.get().convertedFile()), ogg.toPath());
+            if (existing.get().lowpassFile() != null) {
+                ContentStore.link(ServletHelper.CONVERTED.resolve(existing.get().lowpassFile()), lowpass.toPath());
+            } else if (lowpass.exists()) {
+                // The linked ogg can be older than a lowpass file left from an earlier
+                // upload, so finishConversion wouldn't see that it's out of date
+                deleteOutOfDateLowpass(recording);
+            }
+            LOG.info("Linked " + recording + " to the identical " + existing.get().token() + "/" + existing.get().file());
+            return true;
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not link " + recording + " to an existing conversion", e);
+            return false;
+        }
+    }
+
+    /**
+     * Decodes and resamples the recording once and writes every version that is made up
+     * front from the same ffmpeg process.
+     */
+    private boolean convertAllToOgg(File recording) throws IOException {
+        File ogg = convertPathToOgg(recording);
+        File lowpass = convertPathToOggLowpass(recording);
+        ogg.getParentFile().mkdirs();
+        return runFfmpeg(ffmpegCommand(conversionArgs(windowsToWSLPath(recording.getAbsoluteFile()), ogg, lowpass)));
+    }
+
+    private String[] conversionArgs(String input, File ogg, File lowpass) {
+        // pygame on the raspberry pi needs everything at 44100Hz (see below). When the
+        // lowpass version is made on demand, which is the default, there is only one output.
+        if (lowpassOnDemand) {
+            return new String[]{"-y", "-i", input, "-ar", "44100", "-f", "ogg", outputPath(ogg)};
+        }
+        // The resampled audio is split so the lowpass filter runs on it rather than
+        // resampling twice
+        return new String[]{"-y", "-i", input,
+                "-filter_complex", "[0:a]aresample=44100,asplit=2[full][low];[low]lowpass=f=400[lowpass]",
+                "-map", "[full]", "-f", "ogg", outputPath(ogg),
+                "-map", "[lowpass]", "-f", "ogg", outputPath(lowpass)};
+    }
+
+    /**
+     * Where ffmpeg writes a converted file. It goes to a temp file and is moved into place
+     * by replaceConvertedFiles, as the converted file may be a link into the content store
+     * that other recordings share.
+     */
+    private static String outputPath(File convertedFile) {
+        return windowsToWSLPath(Recording.uploadTempFile(convertedFile));
+    }
+
+    /**
+     * Moves the files written by a conversion into place, or deletes them if it failed.
+     * Returns true if the conversion worked and its files were moved.
+     */
+    boolean replaceConvertedFiles(File recording, boolean converted) {
+        List<File> convertedFiles = lowpassOnDemand
+                ? List.of(convertPathToOgg(recording))
+                : List.of(convertPathToOgg(recording), convertPathToOggLowpass(recording));
+        try {
+            for (File convertedFile : convertedFiles) {
+                Path tempFile = Recording.uploadTempFile(convertedFile).toPath();
+                if (converted) {
+                    Files.move(tempFile, convertedFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } else {
+                    Files.deleteIfExists(tempFile);
+                }
+            }
+            return converted;
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not move the converted files for " + recording + " into place", e);
+            for (File convertedFile : convertedFiles) {
+                Recording.uploadTempFile(convertedFile).delete();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Makes the lowpass version from the converted ogg, which is already at the right
+     * sample rate. It's written to a temp file first so it can't be served half written.
+     */
+    private boolean generateLowpass(File ogg, File lowpass) throws IOException {
+        File tempFile = Recording.uploadTempFile(lowpass);
+        String[] cmd = ffmpegCommand("-y", "-i", windowsToWSLPath(ogg.getAbsoluteFile()),
+                "-af", "lowpass=f=400", "-f", "ogg", windowsToWSLPath(tempFile));
+        if (!runFfmpeg(cmd)) {
+            Files.deleteIfExists(tempFile.toPath());
+            return false;
+        }
+        Files.move(tempFile.toPath(), lowpass.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        ServletHelper.CONVERTED_INDEX.refresh(lowpass);
+        ServletHelper.AUDIO_FILE_CACHE.invalidate(lowpass.toPath());
+        StationsDb.markLowpassGenerated(ogg.getParentFile().getName(), relativeToConverted(ogg),
+                relativeToConverted(lowpass), store(lowpass).md5());
+        return true;
+    }
+
+    private boolean convertToOgg(File fileIn, File fileOut, boolean lowpass) throws IOException {
         String[] cmd;
         // pygame on the raspberry pi can only use one fixed sample rate rather than adapting
         // to the audio source. This means we have to encode all our audio with the same
         // sample rate. Later versions of pygame can adapt to the input but it's difficult
         // to update pygame on the raspberry pi
         String inputFile = windowsToWSLPath(fileIn);
-        String outputFile = windowsToWSLPath(fileOut);
+        String outputFile = outputPath(fileOut);
 
         if (System.getProperty("os.name").startsWith("Windows")) {
             if (lowpass) {
-                cmd = new String[]{"wsl", "ffmpeg", "-y", "-i", inputFile, "-ar", "44100", "-af", "lowpass=f=400", outputFile};
+                cmd = new String[]{"wsl", "ffmpeg", "-y", "-i", inputFile, "-ar", "44100", "-af", "lowpass=f=400", "-f", "ogg", outputFile};
             } else {
-                cmd = new String[]{"wsl", "ffmpeg", "-y", "-i", inputFile, "-ar", "44100", outputFile};
+                cmd = new String[]{"wsl", "ffmpeg", "-y", "-i", inputFile, "-ar", "44100", "-f", "ogg", outputFile};
             }
         } else {
             if (lowpass) {
-                cmd = new String[]{"ffmpeg", "-y", "-i", inputFile, "-ar", "44100", "-af", "lowpass=f=400", outputFile};
+                cmd = new String[]{"ffmpeg", "-y", "-i", inputFile, "-ar", "44100", "-af", "lowpass=f=400", "-f", "ogg", outputFile};
             } else {
-                cmd = new String[]{"ffmpeg", "-y", "-i", inputFile, "-ar", "44100", outputFile};
+                cmd = new String[]{"ffmpeg", "-y", "-i", inputFile, "-ar", "44100", "-f", "ogg", outputFile};
             }
         }
 
@@ -85,6 +678,10 @@ public class AudioConverter {
             fileOut.getParentFile().mkdirs();
         }
 
+        return runFfmpeg(cmd);
+    }
+
+    private boolean runFfmpeg(String[] cmd) throws IOException {
         Process process = Runtime.getRuntime().exec(cmd);
 
         // Probably not wise to try to consume all the std in before consuming the std err
@@ -111,12 +708,14 @@ public class AudioConverter {
         }
         if (!process.isAlive()) {
             LOG.info("Process exited with code " + process.exitValue());
+            return process.exitValue() == 0;
         } else {
             LOG.warning("Process did not exit for some reason");
+            return false;
         }
     }
 
-    private String windowsToWSLPath(File file) {
+    private static String windowsToWSLPath(File file) {
         return file.getAbsolutePath().replaceAll("\\\\", "/").replaceAll("^C:", "/mnt/c");
     }
 }
@@ -0,0 +1,212 @@
+package fm.francoisefm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the contents of recently served converted files in off-heap buffers. When a new
+ * recording is converted, most radios fetch it within a few minutes of each other so this
+ * saves opening and reading the same file again for every one of them.
+ * Entries are evicted least recently used first once the total size goes over the budget.
+ * The cache is disabled unless RADIO_CACHE_BYTES is set in server.properties.
+ */
+public class AudioFileCache {
+
+    private static final Logger LOG = Logger.getLogger("AudioFileCache");
+
+    private static final long STATS_INTERVAL_MINUTES = 10;
+
+    // Reading is mostly waiting on the disk so a couple of threads keep up with the misses
+    private static final int LOADER_THREADS = 2;
+    private static final int MAX_QUEUED_LOADS = 64;
+
+    private record Entry(long size, long mtime, ByteBuffer contents) { }
+
+    private record Version(Path file, long size, long mtime) { }
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    // Access ordered so iteration starts at the least recently used entry
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    // Files being read into the cache
+    private final Set<Version> loading = ConcurrentHashMap.newKeySet();
+    // Misses past the end of a full queue are just not cached
+    private final ExecutorService loader = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED_LOADS), r -> {
+        Thread thread = new Thread(r, "AudioFileCache-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public AudioFileCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    public static AudioFileCache fromProperties(Properties properties) {
+        long maxBytes = Long.parseLong(properties.getProperty("RADIO_CACHE_BYTES", "0"));
+        // By default don't let one file take more than a quarter of the cache
+        long maxEntryBytes = Long.parseLong(properties.getProperty("RADIO_CACHE_MAX_FILE_BYTES", String.valueOf(maxBytes / 4)));
+        return new AudioFileCache(maxBytes, Math.min(maxEntryBytes, Integer.MAX_VALUE));
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Returns a read only view of the file's contents if they are cached. The size and mtime
+     * from the file index are used to check that a cached copy is still current. On a miss
+     * this returns null straight away, so the caller sends the file from disk, and the file
+     * is read into the cache in the background for the next request. Returns null if the
+     * file is too big to cache.
+     */
+    public ByteBuffer get(Path file, FileIndex.FileInfo fileInfo) {
+        if (!isEnabled() || fileInfo.size() > maxEntryBytes) {
+            return null;
+        }
+        synchronized (entries) {
+            Entry entry = entries.get(file);
+            if (entry != null && entry.size() == fileInfo.size() && entry.mtime() == fileInfo.mtime()) {
+                hits.incrementAndGet();
+                return entry.contents().duplicate();
+            }
+        }
+        misses.incrementAndGet();
+        load(file, fileInfo);
+        return null;
+    }
+
+    /**
+     * Reads a file into the cache off the request threads. When a new recording goes out
+     * many radios ask for it at once, so a file that is already being read isn't read again.
+     */
+    private void load(Path file, FileIndex.FileInfo fileInfo) {
+        Version version = new Version(file, fileInfo.size(), fileInfo.mtime());
+        if (!loading.add(version)) {
+            return;
+        }
+        try {
+            loader.execute(() -> {
+                try {
+                    ByteBuffer contents = read(file, fileInfo.size());
+                    if (contents != null) {
+                        put(file, new Entry(fileInfo.size(), fileInfo.mtime(), contents));
+                    }
+                } finally {
+                    loading.remove(version);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loading.remove(version);
+        }
+    }
+
+    public void invalidate(Path file) {
+        synchronized (entries) {
+            Entry removed = entries.remove(file);
+            if (removed != null) {
+                totalBytes -= removed.size();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        LOG.info("Caching up to " + maxBytes + " bytes of converted audio (max " + maxEntryBytes + " bytes per file)");
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "AudioFileCache-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::logStats, STATS_INTERVAL_MINUTES, STATS_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    private void logStats() {
+        int files;
+        long bytes;
+        synchronized (entries) {
+            files = entries.size();
+            bytes = totalBytes;
+        }
+        LOG.info("Cache has " + files + " files (" + bytes + " bytes). Hits: " + hits.get() +
+                ", misses: " + misses.get() + ", evictions: " + evictions.get());
+    }
+
+    private void put(Path file, Entry entry) {
+        synchronized (entries) {
+            Entry previous = entries.put(file, entry);
+            if (previous != null) {
+                totalBytes -= previous.size();
+            }
+            totalBytes += entry.size();
+            Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && iterator.hasNext()) {
+                Map.Entry<Path, Entry> eldest = iterator.next();
+                if (eldest.getValue() == entry) {
+                    continue;
+                }
+                iterator.remove();
+                totalBytes -= eldest.getValue().size();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private ByteBuffer read(Path file, long size) {
+        ByteBuffer contents = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (contents.hasRemaining()) {
+                if (channel.read(contents) < 0) {
+                    break;
+                }
+            }
+            if (contents.hasRemaining() || channel.size() != size) {
+                // The file changed since it was indexed. It will be picked up next time.
+                return null;
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not read " + file + " into the cache", e);
+            return null;
+        }
+        return contents.flip().asReadOnlyBuffer();
+    }
+}
@@ -4,17 +4,26 @@ import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.FilterMapping;
 import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.servlet.ServletMapping;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Set;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
 import static fm.francoisefm.ServletHelper.CONVERTED;
 import static fm.francoisefm.ServletHelper.RECORDINGS;
+import static fm.francoisefm.ServletHelper.UPLOADS;
 
 public class AudioServer {
 
@@ -23,13 +32,8 @@ public class AudioServer {
     public void start() throws Exception {
 
         long startTime = System.currentTimeMillis();
-        int maxThreads = 100;
-        int minThreads = 10;
-        int idleTimeout = 120;
 
-        QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads, minThreads, idleTimeout);
-
-        final Server server = new Server(threadPool);
+        final Server server = new Server(createThreadPool());
         ServerConnector connector = new ServerConnector(server);
         connector.setPort(9090);
         connector.getConnectionFactories().stream()
@@ -39,11 +43,34 @@ public class AudioServer {
         server.setConnectors(new Connector[] {connector});
 
         ServletHandler servletHandler = new ServletHandler();
-        servletHandler.addServletWithMapping(AllRecordingsServlet.class, "/audio");
-        servletHandler.addServletWithMapping(RecordingServlet.class, "/audio/*");
-        servletHandler.addServletWithMapping(AllStationsServlet.class, "/audio/radio");
-        servletHandler.addServletWithMapping(RadioServlet.class, "/audio/radio/*");
-        server.setHandler(servletHandler);
+        ServletHolder allRecordings = servletHandler.addServletWithMapping(AllRecordingsServlet.class, "/audio");
+        ServletHolder recording = servletHandler.addServletWithMapping(RecordingServlet.class, "/audio/*");
+        ServletHolder allStations = servletHandler.addServletWithMapping(AllStationsServlet.class, "/audio/radio");
+        ServletHolder radio = servletHandler.addServletWithMapping(RadioServlet.class, "/audio/radio/*");
+        ServletHolder stationChanges = servletHandler.addServletWithMapping(StationChangesServlet.class, "/audio/radio/changes/*");
+        ServletHolder store = servletHandler.addServletWithMapping(StoreServlet.class, "/audio/store/*");
+        ServletHolder uploads = servletHandler.addServletWithMapping(UploadsServlet.class, "/audio/uploads");
+        servletHandler.addServletMapping(newServletMapping(uploads, "/audio/uploads/*"));
+        allRecordings.setAsyncSupported(true);
+        uploads.setAsyncSupported(true);
+        recording.setAsyncSupported(true);
+        radio.setAsyncSupported(true);
+        store.setAsyncSupported(true);
+
+        // Separate limits for each kind of request so that a burst of uploads can't
+        // starve radio syncs and vice versa
+        addBulkhead(servletHandler, "upload", getIntProperty("UPLOAD_CONCURRENCY", 32), Set.of("POST", "PATCH"), allRecordings, uploads);
+        addBulkhead(servletHandler, "manifest", getIntProperty("MANIFEST_CONCURRENCY", 16), Set.of("GET"), allStations, stationChanges);
+        addBulkhead(servletHandler, "download", getIntProperty("DOWNLOAD_CONCURRENCY", 256), Set.of("GET"), recording, radio, store);
+
+        // The radio manifest is compressed ahead of time and audio files are already
+        // compressed so only the other JSON endpoints need compressing on the fly
+        GzipHandler gzipHandler = new GzipHandler();
+        gzipHandler.setIncludedPaths("/audio", "/audio/radio/changes/*");
+        gzipHandler.setIncludedMethods("GET");
+        gzipHandler.setMinGzipSize(256);
+        gzipHandler.setHandler(servletHandler);
+        server.setHandler(gzipHandler);
         server.setErrorHandler(new CustomErrorHandler());
 
         server.start();
@@ -54,6 +81,60 @@ public class AudioServer {
         server.join();
     }
 
+    private static ServletMapping newServletMapping(ServletHolder servlet, String pathSpec) {
+        ServletMapping mapping = new ServletMapping();
+        mapping.setServletName(servlet.getName());
+        mapping.setPathSpec(pathSpec);
+        return mapping;
+    }
+
+    private ThreadPool createThreadPool() {
+        String threadPoolType = ServletHelper.PROPERTIES.getProperty("THREAD_POOL", "queued");
+        if (threadPoolType.equals("virtual")) {
+            VirtualThreadPool threadPool = VirtualThreadPool.create();
+            if (threadPool != null) {
+                LOG.info("Using virtual threads");
+                return threadPool;
+            }
+            LOG.warning("Virtual threads need Java 21 or later. Using a queued thread pool instead.");
+        } else if (!threadPoolType.equals("queued")) {
+            LOG.warning("Unknown THREAD_POOL " + threadPoolType + ". Using a queued thread pool.");
+        }
+        int maxThreads = getIntProperty("MAX_THREADS", 100);
+        int minThreads = getIntProperty("MIN_THREADS", 10);
+        int idleTimeout = getIntProperty("THREAD_IDLE_TIMEOUT", 120);
+        LOG.info("Using a queued thread pool with " + minThreads + " to " + maxThreads + " threads");
+        return new QueuedThreadPool(maxThreads, minThreads, idleTimeout);
+    }
+
+    private void addBulkhead(ServletHandler servletHandler, String name, int maxConcurrent, Set<String> methods, ServletHolder... servlets) {
+        if (maxConcurrent <= 0) {
+            LOG.info("No limit on concurrent " + name + " requests");
+            return;
+        }
+        LOG.info("Allowing up to " + maxConcurrent + " concurrent " + name + " requests");
+        FilterHolder filterHolder = new FilterHolder(new BulkheadFilter(name, maxConcurrent, methods));
+        filterHolder.setName(name + "-bulkhead");
+        filterHolder.setAsyncSupported(true);
+        FilterMapping filterMapping = new FilterMapping();
+        filterMapping.setFilterName(filterHolder.getName());
+        filterMapping.setServletNames(Arrays.stream(servlets).map(ServletHolder::getName).toArray(String[]::new));
+        servletHandler.addFilter(filterHolder, filterMapping);
+    }
+
+    private static int getIntProperty(String name, int defaultValue) {
+        String value = ServletHelper.PROPERTIES.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid " + name + " in server.properties: " + value + ". Using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
     private static void configureLogger() {
         InputStream stream = AudioServer.class.getClassLoader().getResourceAsStream("logging.properties");
         if (stream == null) {
@@ -84,7 +165,17 @@ public class AudioServer {
         ensureDirectoryExists(new File("logs"));
         ensureDirectoryExists(RECORDINGS.toFile());
         ensureDirectoryExists(CONVERTED.toFile());
+        ensureDirectoryExists(UPLOADS.toFile());
         StationsDb.initDb();
+        FileHashes.load();
+        RecordingsScanner.scan();
+        ServletHelper.AUDIO_CONVERTER.startQueueingUnconverted();
+        ContentStore.start();
+        FileIndex.startAll();
+        ServletHelper.AUDIO_FILE_CACHE.start();
+        ServletHelper.AUDIO_CONVERTER.startStats();
+        UploadsServlet.startCleanup();
+        RadioManifest.startCompactingChanges();
 
         AudioServer server = new AudioServer();
         server.start();
@@ -0,0 +1,97 @@
+package fm.francoisefm;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Limits how many requests of one kind (uploads, manifest builds, downloads) can be in
+ * progress at once so a burst of one can't use up the server and starve the others.
+ * Requests over the limit are turned away straight away with a 503 rather than queued.
+ * A permit is held until the response is complete, including any async I/O.
+ */
+public class BulkheadFilter implements Filter {
+
+    private static final Logger LOG = Logger.getLogger("BulkheadFilter");
+
+    private static final String RETRY_AFTER_SECONDS = "5";
+
+    private final String name;
+    private final Set<String> methods;
+    private final Semaphore permits;
+    private final AtomicLong rejected = new AtomicLong();
+
+    public BulkheadFilter(String name, int maxConcurrent, Set<String> methods) {
+        this.name = name;
+        this.methods = methods;
+        this.permits = new Semaphore(maxConcurrent);
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        if (!methods.contains(httpRequest.getMethod())) {
+            chain.doFilter(request, response);
+            return;
+        }
+        if (!permits.tryAcquire()) {
+            LOG.warning("Too many " + name + " requests in progress. Rejected " + rejected.incrementAndGet() + " so far.");
+            HttpServletResponse httpResponse = (HttpServletResponse) response;
+            ServletHelper.setAllowHeaders(httpRequest, httpResponse);
+            httpResponse.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+            httpResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            if (httpRequest.isAsyncStarted()) {
+                httpRequest.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        release(released);
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                        release(released);
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            } else {
+                release(released);
+            }
+        }
+    }
+
+    private void release(AtomicBoolean released) {
+        // onError can be followed by onComplete so make sure the permit is only returned once
+        if (released.compareAndSet(false, true)) {
+            permits.release();
+        }
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,91 @@
+package fm.francoisefm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An inclusive range of bytes within a file, as requested by a Range header (RFC 7233).
+ */
+record ByteRange(long first, long last) {
+
+    private static final Pattern RANGE_SPEC = Pattern.compile("^([0-9]*)-([0-9]*)$");
+
+    // Players only ever ask for a few ranges. Lots of tiny ones would cost far more to send
+    // as a multipart response than the whole file.
+    private static final int MAX_RANGES = 16;
+
+    long length() {
+        return last + 1 - first;
+    }
+
+    String contentRange(long fileSize) {
+        return "bytes " + first + "-" + last + "/" + fileSize;
+    }
+
+    /**
+     * Parses a Range header against a file of the given size. Returns null if the header
+     * can't be parsed or asks for too many ranges, in which case it should be ignored and
+     * the whole file sent. Returns an empty list if none of the ranges can be satisfied.
+     * Overlapping and adjacent ranges are merged so the result is in order.
+     */
+    static List<ByteRange> parse(String header, long fileSize) {
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            Matcher matcher = RANGE_SPEC.matcher(spec.trim());
+            if (!matcher.matches()) {
+                return null;
+            }
+            String first = matcher.group(1);
+            String last = matcher.group(2);
+            try {
+                if (first.isEmpty()) {
+                    // bytes=-N is the last N bytes of the file
+                    if (last.isEmpty()) {
+                        return null;
+                    }
+                    long suffixLength = Long.parseLong(last);
+                    if (suffixLength > 0 && fileSize > 0) {
+                        ranges.add(new ByteRange(Math.max(0, fileSize - suffixLength), fileSize - 1));
+                    }
+                } else {
+                    long firstByte = Long.parseLong(first);
+                    long lastByte = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (lastByte < firstByte) {
+                        return null;
+                    }
+                    if (firstByte < fileSize) {
+                        ranges.add(new ByteRange(firstByte, Math.min(lastByte, fileSize - 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // Too big to be a long
+                return null;
+            }
+        }
+        return merge(ranges);
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        ranges.sort(Comparator.comparingLong(ByteRange::first));
+        List<ByteRange> merged = new ArrayList<>();
+        for (ByteRange range : ranges) {
+            ByteRange previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous != null && range.first() <= previous.last() + 1) {
+                merged.set(merged.size() - 1, new ByteRange(previous.first(), Math.max(previous.last(), range.last())));
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+}
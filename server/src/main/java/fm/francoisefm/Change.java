@@ -0,0 +1,15 @@
+package fm.francoisefm;
+
+/**
+ * An entry in the change log that radios use to sync incrementally. A FILE change means
+ * a converted file was added or replaced, a DELETED change means it was removed and a
+ * STATION change means the station itself was created.
+ */
+record Change(long version, String token, String name, String path, String hash, Type type) {
+
+    enum Type {
+        STATION,
+        FILE,
+        DELETED
+    }
+}
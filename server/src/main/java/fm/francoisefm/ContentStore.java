@@ -0,0 +1,175 @@
+package fm.francoisefm;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Converted files stored by the sha256 of their contents. The files under each user's
+ * directory in converted/ are hard links into the store so identical files only take up
+ * space once, and a stored file never changes so it can be cached by clients forever.
+ * A stored file is removed once nothing else links to it.
+ */
+public class ContentStore {
+
+    private static final Logger LOG = Logger.getLogger("ContentStore");
+
+    public static final Path STORE = ServletHelper.CONVERTED.resolve("store");
+
+    private static final Pattern DIGEST = Pattern.compile("^[0-9a-f]{64}$");
+
+    public static Path path(String digest) {
+        // Spread the files over subdirectories so no one directory gets too big
+        return STORE.resolve(digest.substring(0, 2)).resolve(digest + ".ogg");
+    }
+
+    /**
+     * The stored file with the given digest, if there is one
+     */
+    public static Optional<Path> find(String digest) {
+        if (!DIGEST.matcher(digest).matches()) {
+            return Optional.empty();
+        }
+        Path stored = path(digest);
+        return Files.isRegularFile(stored) ? Optional.of(stored) : Optional.empty();
+    }
+
+    /**
+     * Adds a converted file to the store. If the same contents are already stored the file
+     * is replaced with a link to the stored copy.
+     */
+    public static synchronized void add(Path file, String digest) throws IOException {
+        Path stored = path(digest);
+        Files.createDirectories(stored.getParent());
+        try {
+            Files.createLink(stored, file);
+            return;
+        } catch (FileAlreadyExistsException e) {
+            // Stored already, either from another recording or an earlier call for this one
+        }
+        if (!Files.isSameFile(stored, file)) {
+            link(stored, file);
+            LOG.info("Replaced " + file + " with a link to " + stored);
+        }
+    }
+
+    /**
+     * Replaces the target with a link to an existing file. The file's modification time is
+     * left alone as it's shared by every link to it and is part of their ETags.
+     */
+    public static void link(Path existing, Path target) throws IOException {
+        // Linked under a temp name and moved into place so the target is never missing
+        Path temp = Recording.uploadTempFile(target.toFile()).toPath();
+        Files.deleteIfExists(temp);
+        Files.createLink(temp, existing);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes the stored copy of a converted file that has just been deleted if nothing
+     * links to it any more
+     */
+    public static void release(String digest) {
+        if (digest != null) {
+            find(digest).ifPresent(ContentStore::deleteIfUnused);
+        }
+    }
+
+    /**
+     * Adds any converted files that aren't stored yet, e.g. from before the store existed,
+     * then removes stored files that are no longer used. Files are hashed as needed so this
+     * runs in the background.
+     */
+    public static void start() {
+        Thread thread = new Thread(() -> {
+            long startTime = System.currentTimeMillis();
+            int added = 0;
+            for (RecordingInfo recording : StationsDb.getConvertedRecordings()) {
+                for (String convertedFile : new String[]{recording.convertedFile(), recording.lowpassFile()}) {
+                    if (convertedFile != null && addExisting(ServletHelper.CONVERTED.resolve(convertedFile))) {
+                        added++;
+                    }
+                }
+            }
+            int removed = prune();
+            if (added > 0) {
+                // Include the digests of the newly hashed files
+                RadioManifest.invalidate();
+            }
+            long timeTaken = System.currentTimeMillis() - startTime;
+            LOG.info("Added " + added + " files to the store and removed " + removed + " unused ones in " + timeTaken + "ms");
+        }, "ContentStore");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static boolean addExisting(Path file) {
+        try {
+            if (!Files.isRegularFile(file)) {
+                return false;
+            }
+            // Hashes are cached so this only reads files that haven't been hashed before
+            Path stored = path(FileHashes.get(file).sha256());
+            if (Files.exists(stored) && Files.isSameFile(stored, file)) {
+                return false;
+            }
+            add(file, FileHashes.get(file).sha256());
+            return true;
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Could not add " + file + " to the store", e);
+            return false;
+        }
+    }
+
+    private static int prune() {
+        List<Path> storedFiles;
+        try (Stream<Path> files = Files.walk(STORE)) {
+            storedFiles = files.filter(Files::isRegularFile).toList();
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not list the store", e);
+            return 0;
+        }
+        int removed = 0;
+        for (Path stored : storedFiles) {
+            if (deleteIfUnused(stored)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static synchronized boolean deleteIfUnused(Path stored) {
+        try {
+            if (getLinkCount(stored) > 1) {
+                return false;
+            }
+            Files.delete(stored);
+            ServletHelper.AUDIO_FILE_CACHE.invalidate(stored);
+            LOG.info("Removed unused " + stored);
+            return true;
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not remove " + stored, e);
+            return false;
+        }
+    }
+
+    private static int getLinkCount(Path file) throws IOException {
+        try {
+            return (Integer) Files.getAttribute(file, "unix:nlink");
+        } catch (UnsupportedOperationException e) {
+            // Without link counts we can't tell if it's used so always keep it
+            return Integer.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package fm.francoisefm;
+
+enum ConversionState {
+    PENDING,
+    CONVERTING,
+    CONVERTED,
+    FAILED
+}
@@ -0,0 +1,13 @@
+package fm.francoisefm;
+
+/**
+ * Hashes of a file's contents along with the size and modification time the file
+ * had when it was hashed. If either of those change then the hashes are stale.
+ */
+record FileHash(String path, long size, long mtime, String md5, String crc32c, String sha256) {
+
+    boolean matches(long size, long mtime) {
+        // Hashes saved before sha256 was added have to be redone
+        return this.size == size && this.mtime == mtime && sha256 != null;
+    }
+}
@@ -0,0 +1,120 @@
+package fm.francoisefm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Cache of file hashes keyed by path and validated against the file's size and
+ * modification time, so a file is only read in full when it has actually changed.
+ * The cache is persisted in the database so that it survives restarts.
+ */
+public class FileHashes {
+
+    private static final Logger LOG = Logger.getLogger("FileHashes");
+
+    private static final Map<String, FileHash> CACHE = new ConcurrentHashMap<>();
+
+    public static void load() {
+        for (FileHash fileHash : StationsDb.getFileHashes()) {
+            CACHE.put(fileHash.path(), fileHash);
+        }
+        LOG.info("Loaded " + CACHE.size() + " file hashes");
+    }
+
+    // The radio compares these against its own md5 hashes so the algorithm must not change
+    public static String md5(Path path) {
+        return get(path).md5();
+    }
+
+    /**
+     * Returns the crc32c of a file if it has already been hashed. This never touches the disk.
+     */
+    public static String cachedCrc32c(Path path) {
+        FileHash fileHash = CACHE.get(path.toString());
+        return fileHash == null ? null : fileHash.crc32c();
+    }
+
+    /**
+     * Returns the sha256 of a file if it has already been hashed. This never touches the disk.
+     */
+    public static String cachedSha256(Path path) {
+        FileHash fileHash = CACHE.get(path.toString());
+        return fileHash == null ? null : fileHash.sha256();
+    }
+
+    /**
+     * Returns the hashes of a file, only reading the file if it has changed since it was last hashed
+     */
+    public static FileHash get(Path path) {
+        BasicFileAttributes attributes = readAttributes(path);
+        long size = attributes.size();
+        long mtime = attributes.lastModifiedTime().toMillis();
+        FileHash cached = CACHE.get(path.toString());
+        if (cached != null && cached.matches(size, mtime)) {
+            return cached;
+        }
+        return hash(path, size, mtime);
+    }
+
+    /**
+     * Hashes a file that has just been written, replacing anything previously cached for it
+     */
+    public static FileHash update(Path path) {
+        BasicFileAttributes attributes = readAttributes(path);
+        return hash(path, attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    public static void forget(Path path) {
+        if (CACHE.remove(path.toString()) != null) {
+            StationsDb.deleteFileHash(path.toString());
+        }
+    }
+
+    private static FileHash hash(Path path, long size, long mtime) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            CRC32C crc = new CRC32C();
+
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer.duplicate());
+                    sha256.update(buffer.duplicate());
+                    crc.update(buffer);
+                    buffer.clear();
+                }
+            }
+            FileHash fileHash = new FileHash(path.toString(), size, mtime,
+                    HexFormat.of().formatHex(digest.digest()),
+                    String.format("%08x", crc.getValue()),
+                    HexFormat.of().formatHex(sha256.digest()));
+            CACHE.put(fileHash.path(), fileHash);
+            StationsDb.putFileHash(fileHash);
+            return fileHash;
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new AudioServerException("Could not hash " + path, e);
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new AudioServerException("Could not read attributes of " + path, e);
+        }
+    }
+}
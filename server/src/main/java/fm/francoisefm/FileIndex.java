@@ -0,0 +1,247 @@
+package fm.francoisefm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * In memory index of the files under recordings/ or converted/, laid out as
+ * root/token/fileName. The index is filled by a scan at startup and then kept current by
+ * a WatchService, so servlets can check for a file and get its size without touching the
+ * disk. Temp files for uploads still in progress are left out. The server also updates
+ * the index directly whenever it writes or deletes a file, and the whole tree is rescanned
+ * periodically in case any watch events were missed.
+ */
+public class FileIndex {
+
+    private static final Logger LOG = Logger.getLogger("FileIndex");
+
+    private static final long RESCAN_INTERVAL_MINUTES = 10;
+
+    public record FileInfo(long size, long mtime) { }
+
+    private final Path root;
+    private final Map<String, Map<String, FileInfo>> filesByToken = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+    private final Set<Path> registeredDirs = ConcurrentHashMap.newKeySet();
+    private WatchService watchService;
+
+    public FileIndex(Path root) {
+        this.root = root;
+    }
+
+    public void start(ScheduledExecutorService scheduler) {
+        try {
+            watchService = root.getFileSystem().newWatchService();
+            register(root);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not watch " + root + ". Relying on periodic scans.", e);
+        }
+        // Scan after registering the watches so nothing can be missed in between
+        scan();
+        if (watchService != null) {
+            Thread watcher = new Thread(this::watch, "FileIndex-" + root);
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+        scheduler.scheduleWithFixedDelay(this::scan, RESCAN_INTERVAL_MINUTES, RESCAN_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    public Optional<FileInfo> get(String token, String fileName) {
+        Map<String, FileInfo> files = filesByToken.get(token);
+        FileInfo fileInfo = files == null ? null : files.get(fileName);
+        if (fileInfo == null) {
+            // Watch events arrive asynchronously so a file written a moment ago might not be
+            // here yet. Checking the disk on a miss means we never report a real file missing.
+            return Optional.ofNullable(refresh(root.resolve(token).resolve(fileName)));
+        }
+        return Optional.of(fileInfo);
+    }
+
+    public boolean exists(String token, String fileName) {
+        return get(token, fileName).isPresent();
+    }
+
+    /**
+     * Updates the index entry for a file from the disk, removing it if the file has gone
+     */
+    public FileInfo refresh(Path file) {
+        String token = file.getParent().getFileName().toString();
+        String fileName = file.getFileName().toString();
+        if (Recording.isUploadTempFile(fileName)) {
+            return null;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                remove(token, fileName);
+                return null;
+            }
+            FileInfo fileInfo = new FileInfo(attributes.size(), attributes.lastModifiedTime().toMillis());
+            filesByToken.computeIfAbsent(token, t -> new ConcurrentHashMap<>()).put(fileName, fileInfo);
+            return fileInfo;
+        } catch (NoSuchFileException e) {
+            remove(token, fileName);
+            return null;
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not read attributes of " + file, e);
+            return null;
+        }
+    }
+
+    public void refresh(File file) {
+        refresh(file.toPath());
+    }
+
+    public void remove(File file) {
+        Path path = file.toPath();
+        remove(path.getParent().getFileName().toString(), path.getFileName().toString());
+    }
+
+    private void remove(String token, String fileName) {
+        Map<String, FileInfo> files = filesByToken.get(token);
+        if (files != null) {
+            files.remove(fileName);
+        }
+    }
+
+    void scan() {
+        long startTime = System.currentTimeMillis();
+        Map<String, Map<String, FileInfo>> scanned = new HashMap<>();
+        File[] tokenDirs = root.toFile().listFiles(File::isDirectory);
+        if (tokenDirs != null) {
+            for (File tokenDir : tokenDirs) {
+                if (watchService != null) {
+                    register(tokenDir.toPath());
+                }
+                Map<String, FileInfo> files = new HashMap<>();
+                File[] tokenFiles = tokenDir.listFiles(File::isFile);
+                if (tokenFiles != null) {
+                    for (File file : tokenFiles) {
+                        if (Recording.isUploadTempFile(file.getName())) {
+                            continue;
+                        }
+                        files.put(file.getName(), new FileInfo(file.length(), file.lastModified()));
+                    }
+                }
+                scanned.put(tokenDir.getName(), files);
+            }
+        }
+        int rechecked = merge(scanned);
+        long timeTaken = System.currentTimeMillis() - startTime;
+        LOG.info("Indexed " + scanned.size() + " directories in " + root + " in " + timeTaken + "ms. Rechecked " + rechecked + " changed files.");
+    }
+
+    /**
+     * Merges the results of a scan into the index. Files can be written, deleted or refreshed
+     * while the scan runs, so any entry where the scan and the index disagree is checked on
+     * the disk again rather than taking either side. Returns the number of entries checked.
+     */
+    private int merge(Map<String, Map<String, FileInfo>> scanned) {
+        int checked = 0;
+        for (Map.Entry<String, Map<String, FileInfo>> scannedDir : scanned.entrySet()) {
+            Path dir = root.resolve(scannedDir.getKey());
+            Map<String, FileInfo> scannedFiles = scannedDir.getValue();
+            Map<String, FileInfo> files = filesByToken.computeIfAbsent(scannedDir.getKey(), t -> new ConcurrentHashMap<>());
+            for (Map.Entry<String, FileInfo> scannedFile : scannedFiles.entrySet()) {
+                if (!scannedFile.getValue().equals(files.get(scannedFile.getKey()))) {
+                    refresh(dir.resolve(scannedFile.getKey()));
+                    checked++;
+                }
+            }
+            for (String fileName : files.keySet()) {
+                if (!scannedFiles.containsKey(fileName)) {
+                    refresh(dir.resolve(fileName));
+                    checked++;
+                }
+            }
+        }
+        for (String token : filesByToken.keySet()) {
+            if (!scanned.containsKey(token) && !Files.isDirectory(root.resolve(token))) {
+                filesByToken.remove(token);
+            }
+        }
+        return checked;
+    }
+
+    private void register(Path dir) {
+        if (!registeredDirs.add(dir)) {
+            return;
+        }
+        try {
+            watchedDirs.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+        } catch (IOException e) {
+            registeredDirs.remove(dir);
+            LOG.log(Level.WARNING, "Could not watch " + dir, e);
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = watchedDirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    LOG.warning("Missed file events in " + root + ". Rescanning.");
+                    scan();
+                    continue;
+                }
+                if (dir == null) {
+                    continue;
+                }
+                Path changed = dir.resolve((Path) event.context());
+                if (dir.equals(root)) {
+                    // A new user directory. Watch it and pick up anything already in it.
+                    if (event.kind() == ENTRY_CREATE && Files.isDirectory(changed)) {
+                        register(changed);
+                        File[] files = changed.toFile().listFiles(File::isFile);
+                        if (files != null) {
+                            for (File file : files) {
+                                refresh(file.toPath());
+                            }
+                        }
+                    } else if (event.kind() == ENTRY_DELETE) {
+                        filesByToken.remove(changed.getFileName().toString());
+                    }
+                } else {
+                    refresh(changed);
+                }
+            }
+            if (!key.reset()) {
+                // The directory has been deleted
+                Path removed = watchedDirs.remove(key);
+                if (removed != null) {
+                    registeredDirs.remove(removed);
+                }
+            }
+        }
+    }
+
+    public static void startAll() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "FileIndex-rescan");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ServletHelper.RECORDINGS_INDEX.start(scheduler);
+        ServletHelper.CONVERTED_INDEX.start(scheduler);
+    }
+}
@@ -0,0 +1,149 @@
+package fm.francoisefm;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Sends a file in answer to a GET, taking care of the conditional request headers and of
+ * Range requests. Used by every servlet that serves audio files.
+ */
+class FileResponse {
+
+    private static final Logger LOG = Logger.getLogger("FileResponse");
+
+    private final Supplier<AsyncFileWriter> newWriter;
+    private final String contentType;
+    private final FileIndex.FileInfo fileInfo;
+    private final String etag;
+
+    /**
+     * @param newWriter makes a writer for the file, only called if there is a body to send
+     */
+    FileResponse(Supplier<AsyncFileWriter> newWriter, String contentType, FileIndex.FileInfo fileInfo, String etag) {
+        this.newWriter = newWriter;
+        this.contentType = contentType;
+        this.fileInfo = fileInfo;
+        this.etag = etag;
+    }
+
+    /**
+     * Sends the file, or just a status if there's no body to send. Returns true if a
+     * writer was started to send the body, which completes the request once it's done.
+     */
+    boolean send(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", fileInfo.mtime());
+        response.setHeader("Accept-Ranges", "bytes");
+
+        if (isNotModified(request)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return false;
+        }
+
+        // If the request has a Range header then return only the requested bytes. If-Range
+        // means only do that if the client's partial copy is of the same version of the file.
+        String range = request.getHeader("Range");
+        if (range != null && ifRangeMatches(request)) {
+            List<ByteRange> ranges = ByteRange.parse(range, fileInfo.size());
+            if (ranges != null) {
+                if (ranges.isEmpty()) {
+                    response.setHeader("Content-Range", "bytes */" + fileInfo.size());
+                    response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return false;
+                } else if (ranges.size() == 1) {
+                    write(request, response, ranges.get(0));
+                } else {
+                    write(request, response, ranges);
+                }
+                return true;
+            }
+        }
+        write(request, response);
+        return true;
+    }
+
+    private boolean isNotModified(HttpServletRequest request) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            // If-None-Match takes precedence over If-Modified-Since
+            return ServletHelper.matchesETag(ifNoneMatch, etag);
+        }
+        long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+        // HTTP dates only have second precision
+        return ifModifiedSince != -1 && fileInfo.mtime() / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private boolean ifRangeMatches(HttpServletRequest request) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // If-Range requires a strong comparison so a weak tag never matches
+            return ifRange.equals(etag);
+        }
+        long date = getDateHeader(request, "If-Range");
+        return date != -1 && date / 1000 == fileInfo.mtime() / 1000;
+    }
+
+    private long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            LOG.warning("Invalid " + name + " header: " + request.getHeader(name));
+            return -1;
+        }
+    }
+
+    private void write(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType(contentType);
+        response.setHeader("Content-Length", String.valueOf(fileInfo.size()));
+        newWriter.get()
+                .addFileRegion(0, fileInfo.size())
+                .start(request, response);
+    }
+
+    private void write(HttpServletRequest request, HttpServletResponse response, ByteRange range) throws IOException {
+        response.setContentType(contentType);
+        response.setHeader("Content-Length", String.valueOf(range.length()));
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", range.contentRange(fileInfo.size()));
+
+        LOG.info("Getting range " + range.first() + " to " + range.last() + " (" + range.length() + ")");
+
+        newWriter.get()
+                .addFileRegion(range.first(), range.length())
+                .start(request, response);
+    }
+
+    private void write(HttpServletRequest request, HttpServletResponse response, List<ByteRange> ranges) throws IOException {
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+
+        AsyncFileWriter writer = newWriter.get();
+        long contentLength = 0;
+        for (ByteRange range : ranges) {
+            byte[] partHeader = ("\r\n--" + boundary + "\r\n" +
+                    "Content-Type: " + contentType + "\r\n" +
+                    "Content-Range: " + range.contentRange(fileInfo.size()) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            writer.addBytes(partHeader).addFileRegion(range.first(), range.length());
+            contentLength += partHeader.length + range.length();
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        writer.addBytes(end);
+        contentLength += end.length;
+
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setHeader("Content-Length", String.valueOf(contentLength));
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+
+        LOG.info("Getting " + ranges.size() + " ranges (" + contentLength + ")");
+
+        writer.start(request, response);
+    }
+}
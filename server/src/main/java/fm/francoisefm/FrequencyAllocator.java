@@ -0,0 +1,84 @@
+package fm.francoisefm;
+
+import java.util.OptionalInt;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks which frequencies in the band are free using one bit per frequency.
+ * Claiming a frequency is a compare-and-set on a single word so two callers
+ * can never be handed the same frequency.
+ */
+class FrequencyAllocator {
+
+    private final int minFrequency;
+    private final int slots;
+    private final AtomicLongArray used;
+
+    FrequencyAllocator(int minFrequency, int slots) {
+        this.minFrequency = minFrequency;
+        this.slots = slots;
+        this.used = new AtomicLongArray((slots + 63) / 64);
+    }
+
+    /**
+     * Claims a free frequency starting the search from a random point in the band
+     * so that stations are spread out across the dial. Returns empty if every
+     * frequency has already been taken.
+     */
+    OptionalInt allocate() {
+        int start = ThreadLocalRandom.current().nextInt(slots);
+        int words = used.length();
+        // Visit every word once, starting and finishing on the word containing the start slot
+        for (int i = 0; i <= words; i++) {
+            int word = (start / 64 + i) % words;
+            long mask = freeMask(word);
+            if (i == 0) {
+                // Only take slots at or after the start in the first word
+                mask &= -1L << (start % 64);
+            }
+            while (true) {
+                long current = used.get(word);
+                long free = ~current & mask;
+                if (free == 0) {
+                    break;
+                }
+                long bit = Long.lowestOneBit(free);
+                if (used.compareAndSet(word, current, current | bit)) {
+                    return OptionalInt.of(minFrequency + word * 64 + Long.numberOfTrailingZeros(bit));
+                }
+            }
+        }
+        return OptionalInt.empty();
+    }
+
+    /**
+     * Marks a frequency as used. Returns false if it was already taken.
+     */
+    boolean claim(int frequency) {
+        int slot = toSlot(frequency);
+        long bit = 1L << (slot % 64);
+        long previous = used.getAndAccumulate(slot / 64, bit, (current, b) -> current | b);
+        return (previous & bit) == 0;
+    }
+
+    void release(int frequency) {
+        int slot = toSlot(frequency);
+        long bit = 1L << (slot % 64);
+        used.getAndAccumulate(slot / 64, bit, (current, b) -> current & ~b);
+    }
+
+    private long freeMask(int word) {
+        // The last word may only be partly used
+        int bitsInWord = Math.min(64, slots - word * 64);
+        return bitsInWord == 64 ? -1L : (1L << bitsInWord) - 1;
+    }
+
+    private int toSlot(int frequency) {
+        int slot = frequency - minFrequency;
+        if (slot < 0 || slot >= slots) {
+            throw new AudioServerException("Frequency out of range: " + frequency);
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,180 @@
+package fm.francoisefm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal streaming JSON writer that encodes straight to UTF-8 bytes in a buffer which
+ * can be reused between documents. Commas between values are handled automatically and
+ * all strings are escaped, so names containing quotes or control characters are safe.
+ */
+public class JsonWriter {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buffer;
+    private int size;
+
+    // One entry per open object or array: true until the first value has been written
+    private boolean[] first = new boolean[16];
+    private int depth;
+    // Set after a name so the following value doesn't get a comma
+    private boolean afterName;
+
+    public JsonWriter() {
+        this(8192);
+    }
+
+    public JsonWriter(int initialCapacity) {
+        buffer = new byte[initialCapacity];
+    }
+
+    public JsonWriter reset() {
+        size = 0;
+        depth = 0;
+        afterName = false;
+        return this;
+    }
+
+    public JsonWriter beginObject() {
+        beforeValue();
+        write((byte) '{');
+        push();
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        depth--;
+        write((byte) '}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        beforeValue();
+        write((byte) '[');
+        push();
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        depth--;
+        write((byte) ']');
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+        beforeValue();
+        writeString(name);
+        write((byte) ':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        beforeValue();
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        beforeValue();
+        writeAscii(Long.toString(value));
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(buffer, 0, size);
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (first[depth - 1]) {
+                first[depth - 1] = false;
+            } else {
+                write((byte) ',');
+            }
+        }
+    }
+
+    private void push() {
+        if (depth == first.length) {
+            first = Arrays.copyOf(first, depth * 2);
+        }
+        first[depth++] = true;
+    }
+
+    private void writeString(String value) {
+        write((byte) '"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                write((byte) '\\');
+                write((byte) c);
+            } else if (c < 0x20) {
+                switch (c) {
+                    case '\n' -> writeAscii("\\n");
+                    case '\r' -> writeAscii("\\r");
+                    case '\t' -> writeAscii("\\t");
+                    case '\b' -> writeAscii("\\b");
+                    case '\f' -> writeAscii("\\f");
+                    default -> {
+                        writeAscii("\\u00");
+                        write(HEX[c >> 4]);
+                        write(HEX[c & 0xf]);
+                    }
+                }
+            } else if (c < 0x80) {
+                write((byte) c);
+            } else if (c < 0x800) {
+                write((byte) (0xc0 | (c >> 6)));
+                write((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                write((byte) (0xf0 | (codePoint >> 18)));
+                write((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                write((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                write((byte) (0x80 | (codePoint & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                // An unpaired surrogate can't be encoded as UTF-8
+                write((byte) '?');
+            } else {
+                write((byte) (0xe0 | (c >> 12)));
+                write((byte) (0x80 | ((c >> 6) & 0x3f)));
+                write((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        write((byte) '"');
+    }
+
+    private void writeAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            write((byte) value.charAt(i));
+        }
+    }
+
+    private void write(byte b) {
+        if (size == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        buffer[size++] = b;
+    }
+}
@@ -0,0 +1,122 @@
+package fm.francoisefm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The length and format of an Ogg file, read from its page headers rather than by decoding
+ * it. The codec header in the first page gives the channels and sample rate, and the
+ * granule position of the last page gives the number of samples. Only the start and end
+ * of the file are read. Vorbis, Opus and FLAC streams are supported.
+ *
+ * @param bitrate the average bitrate in bits per second
+ */
+record OggInfo(long durationMs, int bitrate, int channels, int sampleRate) {
+
+    // Big enough for the first page and for the last page to be found in the tail
+    private static final int READ_SIZE = 64 * 1024;
+
+    private static final int PAGE_HEADER_SIZE = 27;
+    private static final byte[] CAPTURE_PATTERN = "OggS".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] VORBIS_HEADER = "\u0001vorbis".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] OPUS_HEADER = "OpusHead".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FLAC_HEADER = "\u007fFLAC".getBytes(StandardCharsets.ISO_8859_1);
+
+    // Opus granule positions always count samples at 48kHz whatever the input rate was
+    private static final int OPUS_RATE = 48000;
+
+    static OggInfo read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer head = read(channel, 0, (int) Math.min(size, READ_SIZE));
+            if (head.limit() < PAGE_HEADER_SIZE || !matches(head, 0, CAPTURE_PATTERN)) {
+                throw new AudioServerException("Not an Ogg file: " + file);
+            }
+            int serial = head.getInt(14);
+            int packetStart = PAGE_HEADER_SIZE + (head.get(26) & 0xff);
+
+            int channels;
+            int sampleRate;
+            long preSkip = 0;
+            int granuleRate;
+            if (matches(head, packetStart, VORBIS_HEADER)) {
+                channels = head.get(packetStart + 11) & 0xff;
+                sampleRate = head.getInt(packetStart + 12);
+                granuleRate = sampleRate;
+            } else if (matches(head, packetStart, OPUS_HEADER)) {
+                channels = head.get(packetStart + 9) & 0xff;
+                preSkip = head.getShort(packetStart + 10) & 0xffff;
+                sampleRate = OPUS_RATE;
+                granuleRate = OPUS_RATE;
+            } else if (matches(head, packetStart, FLAC_HEADER)) {
+                // The STREAMINFO block follows the mapping header, the fLaC marker and the
+                // metadata block header. Sample rate and channels are packed into bit fields.
+                int streamInfo = packetStart + 17;
+                int packed = head.order(ByteOrder.BIG_ENDIAN).getInt(streamInfo + 10);
+                head.order(ByteOrder.LITTLE_ENDIAN);
+                sampleRate = packed >>> 12;
+                channels = ((packed >>> 9) & 0x7) + 1;
+                granuleRate = sampleRate;
+            } else {
+                throw new AudioServerException("Unsupported codec in " + file);
+            }
+            if (sampleRate <= 0) {
+                throw new AudioServerException("Invalid sample rate in " + file);
+            }
+
+            long tailStart = Math.max(0, size - READ_SIZE);
+            ByteBuffer tail = tailStart == 0 ? head : read(channel, tailStart, (int) (size - tailStart));
+            long granule = lastGranule(tail, serial);
+            if (granule < 0) {
+                throw new AudioServerException("Could not find the last page of " + file);
+            }
+            long durationMs = Math.max(0, granule - preSkip) * 1000 / granuleRate;
+            int bitrate = durationMs == 0 ? 0 : (int) (size * 8 * 1000 / durationMs);
+            return new OggInfo(durationMs, bitrate, channels, sampleRate);
+        }
+    }
+
+    /**
+     * Searches backwards for the last page of the stream that has a granule position. Pages
+     * where no packet finishes have a granule position of -1 so they are skipped.
+     */
+    private static long lastGranule(ByteBuffer buffer, int serial) {
+        for (int i = buffer.limit() - PAGE_HEADER_SIZE; i >= 0; i--) {
+            if (matches(buffer, i, CAPTURE_PATTERN) && buffer.get(i + 4) == 0 && buffer.getInt(i + 14) == serial) {
+                long granule = buffer.getLong(i + 6);
+                if (granule != -1) {
+                    return granule;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                break;
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static boolean matches(ByteBuffer buffer, int offset, byte[] expected) {
+        if (offset + expected.length > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer.get(offset + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
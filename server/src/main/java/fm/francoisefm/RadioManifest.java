@@ -0,0 +1,183 @@
+package fm.francoisefm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The list of stations and files that the radio syncs with. Every radio asks for the same
+ * thing so we render it once and hand out the same bytes until a station or recording
+ * changes.
+ */
+public class RadioManifest {
+
+    private static final Logger LOG = Logger.getLogger("RadioManifest");
+
+    public record Snapshot(long version, long changeVersion, byte[] json, String etag, byte[] gzipJson, String gzipEtag) { }
+
+    private static final AtomicLong VERSION = new AtomicLong(1);
+    private static final Object BUILD_LOCK = new Object();
+    private static volatile Snapshot snapshot;
+
+    // Only used while holding the build lock so the buffer can be reused between builds
+    private static final JsonWriter JSON_WRITER = new JsonWriter(64 * 1024);
+
+    // The change version of the manifest when the change log was last compacted
+    private static long compactionCandidate;
+
+    /**
+     * Called whenever something that appears in the manifest changes
+     */
+    public static void invalidate() {
+        VERSION.incrementAndGet();
+    }
+
+    public static Snapshot get() {
+        Snapshot current = snapshot;
+        if (current != null && current.version() == VERSION.get()) {
+            return current;
+        }
+        // Only one thread builds the manifest. Anyone else asking at the same time
+        // waits for it and then uses the result.
+        synchronized (BUILD_LOCK) {
+            long version = VERSION.get();
+            current = snapshot;
+            if (current != null && current.version() == version) {
+                return current;
+            }
+            long startTime = System.currentTimeMillis();
+            // Read the change log version before the data so that a radio syncing from this
+            // version might see a change twice but can never miss one
+            long changeVersion = StationsDb.getLatestChangeVersion();
+            byte[] json = build(JSON_WRITER.reset()).toByteArray();
+            long encodeTime = System.currentTimeMillis() - startTime;
+            // The manifest is compressed once here rather than on every request
+            byte[] gzipJson = gzip(json);
+            current = new Snapshot(version, changeVersion, json, "\"" + md5(json) + "\"", gzipJson, "\"" + md5(gzipJson) + "\"");
+            snapshot = current;
+            long timeTaken = System.currentTimeMillis() - startTime;
+            LOG.info("Built manifest version " + version + " (" + json.length + " bytes, " + gzipJson.length +
+                    " gzipped) in " + timeTaken + "ms (" + encodeTime + "ms encoding)");
+            return current;
+        }
+    }
+
+    /**
+     * Deletes old entries from the change log every CHANGES_RETENTION_HOURS (default 24).
+     * Each run deletes the changes that the manifest already included at the previous run,
+     * so a radio that has synced within that time can still catch up from the change log.
+     * Radios that are further behind get a 410 and fetch the whole manifest instead.
+     */
+    public static void startCompactingChanges() {
+        long retentionHours = Long.parseLong(ServletHelper.PROPERTIES.getProperty("CHANGES_RETENTION_HOURS", "24"));
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ChangesCompaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(RadioManifest::compactChanges, 0, retentionHours, TimeUnit.HOURS);
+    }
+
+    private static void compactChanges() {
+        try {
+            if (compactionCandidate > 0) {
+                StationsDb.compactChanges(compactionCandidate);
+            }
+            compactionCandidate = get().changeVersion();
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Error compacting changes", e);
+        }
+    }
+
+    static JsonWriter build(JsonWriter writer) {
+        List<Station> allStations = StationsDb.getStations();
+        Map<String, List<RecordingInfo>> recordingsByStation = StationsDb.getConvertedRecordings().stream()
+                .collect(Collectors.groupingBy(r -> r.token() + "/" + r.name()));
+
+        writer.beginArray();
+        for (Station station : allStations) {
+            writer.beginObject();
+            writer.name("name").value(station.name());
+            writer.name("token").value(station.token());
+            writer.name("frequency").value(station.frequency());
+            writer.name("files").beginArray();
+            for (RecordingInfo recording : recordingsByStation.getOrDefault(station.token() + "/" + station.name(), List.of())) {
+                writeFile(writer, recording.convertedFile(), recording.hash(), recording.oggInfo());
+                // Lowpass files are only listed once they've been generated
+                if (recording.lowpassFile() != null) {
+                    writeFile(writer, recording.lowpassFile(), recording.lowpassHash(), null);
+                }
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        writer.endArray();
+        return writer;
+    }
+
+    /**
+     * Writes one converted file as it appears in the manifest and in the change log deltas
+     */
+    static void writeFile(JsonWriter writer, String relativePath, String hash, OggInfo oggInfo) {
+        writer.beginObject();
+        writer.name("path").value(relativePath);
+        // The hash is the md5 that sync.py checks. The crc32c is much cheaper for clients to
+        // verify so we include it as well whenever we have it
+        writer.name("hash").value(hash);
+        Path path = ServletHelper.CONVERTED.resolve(relativePath);
+        String crc32c = FileHashes.cachedCrc32c(path);
+        if (crc32c != null) {
+            writer.name("crc32c").value(crc32c);
+        }
+        // The same file can be downloaded from /audio/store/<digest>.ogg and cached forever
+        String digest = FileHashes.cachedSha256(path);
+        if (digest != null) {
+            writer.name("digest").value(digest);
+        }
+        writeOggInfo(writer, oggInfo);
+        writer.endObject();
+    }
+
+    /**
+     * Writes the length and format of a file so radios can plan playback without downloading it
+     */
+    static void writeOggInfo(JsonWriter writer, OggInfo oggInfo) {
+        if (oggInfo != null) {
+            writer.name("durationMs").value(oggInfo.durationMs());
+            writer.name("bitrate").value(oggInfo.bitrate());
+            writer.name("channels").value(oggInfo.channels());
+            writer.name("sampleRate").value(oggInfo.sampleRate());
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            throw new AudioServerException("Could not compress manifest", e);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static String md5(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AudioServerException("Could not hash manifest", e);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package fm.francoisefm;
 
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
 
 public class RadioServlet extends RecordingServlet {
 
@@ -8,4 +11,29 @@ public class RadioServlet extends RecordingServlet {
     public Path getRecordingLocation() {
         return ServletHelper.CONVERTED;
     }
+
+    @Override
+    public FileIndex getRecordingIndex() {
+        return ServletHelper.CONVERTED_INDEX;
+    }
+
+    @Override
+    protected ByteBuffer getCachedFile(Recording recording) {
+        return ServletHelper.CONVERTED_INDEX.get(recording.token, recording.fileName)
+                .map(fileInfo -> ServletHelper.AUDIO_FILE_CACHE.get(recording.file.toPath(), fileInfo))
+                .orElse(null);
+    }
+
+    @Override
+    protected CompletableFuture<Boolean> generateIfMissing(Recording recording) {
+        if (ServletHelper.CONVERTED_INDEX.exists(recording.token, recording.fileName)) {
+            return null;
+        }
+        // Lowpass files can be made from the normal converted file if that exists
+        File ogg = AudioConverter.lowpassSource(recording.file);
+        if (ogg == null || !ServletHelper.CONVERTED_INDEX.exists(recording.token, ogg.getName())) {
+            return null;
+        }
+        return ServletHelper.AUDIO_CONVERTER.generateLowpass(ogg);
+    }
 }
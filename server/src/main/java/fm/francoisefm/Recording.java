@@ -2,9 +2,17 @@ package fm.francoisefm;
 
 import java.io.File;
 import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Recording {
 
+    private static final Pattern SLOT_PATTERN = Pattern.compile("_([0-9][0-9])\\.\\w+$");
+
+    // Uploads are written to a hidden file next to the recording until they are complete
+    private static final String UPLOAD_TEMP_PREFIX = ".";
+    private static final String UPLOAD_TEMP_SUFFIX = ".part";
+
     public final String token;
     public final String fileName;
     public final File file;
@@ -14,4 +22,20 @@ public class Recording {
         this.fileName = fileName;
         this.file = recordingLocation.resolve(token).resolve(fileName).toFile();
     }
+
+    public static int slotOf(String fileName) {
+        Matcher matcher = SLOT_PATTERN.matcher(fileName);
+        if (!matcher.find()) {
+            throw new AudioServerException("Recording has no slot number: " + fileName);
+        }
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    public static File uploadTempFile(File recording) {
+        return new File(recording.getParentFile(), UPLOAD_TEMP_PREFIX + recording.getName() + UPLOAD_TEMP_SUFFIX);
+    }
+
+    public static boolean isUploadTempFile(String fileName) {
+        return fileName.startsWith(UPLOAD_TEMP_PREFIX) && fileName.endsWith(UPLOAD_TEMP_SUFFIX);
+    }
 }
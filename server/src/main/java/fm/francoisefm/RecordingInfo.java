@@ -0,0 +1,20 @@
+package fm.francoisefm;
+
+/**
+ * A row of the recordings table. File names are relative to the user's directory in
+ * recordings/ and the converted paths are relative to converted/. The ogg info is null
+ * until the recording has been converted.
+ */
+record RecordingInfo(String token,
+                     String name,
+                     int slot,
+                     String file,
+                     String convertedFile,
+                     String lowpassFile,
+                     long size,
+                     long mtime,
+                     String hash,
+                     String lowpassHash,
+                     ConversionState state,
+                     int attempts,
+                     OggInfo oggInfo) { }
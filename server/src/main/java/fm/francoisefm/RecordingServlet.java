@@ -1,14 +1,16 @@
 package fm.francoisefm;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.EOFException;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -17,10 +19,12 @@ import java.util.regex.Pattern;
 public class RecordingServlet extends HttpServlet {
 
     private static final Pattern AUDIO_FILE_PATTERN = Pattern.compile("^/(" + ServletHelper.UUID_PATTERN + ")/([^/]+)$");
-    private static final Pattern RANGE_HEADER_PATTERN = Pattern.compile("^bytes=([0-9]+)-([0-9]+)$");
 
     private static final Logger LOG = Logger.getLogger("RecordingServlet");
 
+    // How long a request waits for a file that's being generated before giving up
+    private static final int GENERATE_TIMEOUT_SECONDS = 60;
+
     @Override
     protected void doOptions(HttpServletRequest request, HttpServletResponse response) {
         LOG.info("OPTIONS: " + ServletHelper.getRequestURL(request));
@@ -41,8 +45,7 @@ public class RecordingServlet extends HttpServlet {
             LOG.log(Level.WARNING, "Error handling GET", e);
             response.setStatus(HttpServletResponse.SC_NOT_FOUND);
         }
-        long timeTaken = System.currentTimeMillis() - startTime;
-        LOG.info("GET (" + timeTaken + "ms): " + response.getStatus());
+        ServletHelper.logWhenComplete(LOG, "GET", startTime, request, response);
     }
 
     private void handleGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
@@ -54,10 +57,44 @@ public class RecordingServlet extends HttpServlet {
         // Don't validate Auth header on GET
 
         Recording recording = getRecording(request);
+        CompletableFuture<Boolean> generating = generateIfMissing(recording);
+        if (generating != null) {
+            // Wait for the file without holding a thread and send it once it's ready. The wait
+            // is bounded here rather than by the async timeout, which would also cut off the
+            // download that follows.
+            AsyncContext asyncContext = request.startAsync();
+            asyncContext.setTimeout(0);
+            generating.copy()
+                    .orTimeout(GENERATE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .whenComplete((generated, e) -> {
+                        if (e instanceof TimeoutException) {
+                            LOG.warning("Timed out waiting for " + recording.file);
+                            response.setHeader("Retry-After", String.valueOf(GENERATE_TIMEOUT_SECONDS));
+                            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                            asyncContext.complete();
+                        } else {
+                            writeGeneratedRecording(request, response, recording, asyncContext);
+                        }
+                    });
+            return;
+        }
         validateRecording(recording);
         writeRecording(request, response, recording);
     }
 
+    private void writeGeneratedRecording(HttpServletRequest request, HttpServletResponse response, Recording recording, AsyncContext asyncContext) {
+        try {
+            validateRecording(recording);
+            if (!writeRecording(request, response, recording)) {
+                asyncContext.complete();
+            }
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Error handling GET", e);
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            asyncContext.complete();
+        }
+    }
+
     @Override
     protected void doDelete(HttpServletRequest request, HttpServletResponse response) {
         long startTime = System.currentTimeMillis();
@@ -66,11 +103,10 @@ public class RecordingServlet extends HttpServlet {
         try {
             handleDelete(request, response);
         } catch (Exception e) {
-            LOG.log(Level.WARNING, "Error handling GET", e);
+            LOG.log(Level.WARNING, "Error handling DELETE", e);
             response.setStatus(HttpServletResponse.SC_NOT_FOUND);
         }
-        long timeTaken = System.currentTimeMillis() - startTime;
-        LOG.info("GET (" + timeTaken + "ms): " + response.getStatus());
+        ServletHelper.logWhenComplete(LOG, "DELETE", startTime, request, response);
     }
 
     private void handleDelete(HttpServletRequest request, HttpServletResponse response) {
@@ -91,9 +127,15 @@ public class RecordingServlet extends HttpServlet {
     }
 
     private void deleteRecording(Recording recording) {
+        File ogg = AudioConverter.convertPathToOgg(recording.file);
+        File lowpass = AudioConverter.convertPathToOggLowpass(recording.file);
         boolean deletedRecording = recording.file.delete();
-        boolean deletedOgg = AudioConverter.convertPathToOgg(recording.file).delete();
-        boolean deletedLowpass = AudioConverter.convertPathToOggLowpass(recording.file).delete();
+        boolean deletedOgg = AudioConverter.deleteConvertedFile(ogg);
+        boolean deletedLowpass = AudioConverter.deleteConvertedFile(lowpass) || !lowpass.exists();
+        StationsDb.deleteRecording(recording.token, recording.fileName);
+        ServletHelper.RECORDING_SLOTS.release(recording.token, recording.fileName);
+        FileHashes.forget(recording.file.toPath());
+        ServletHelper.RECORDINGS_INDEX.remove(recording.file);
 
         if (!deletedRecording || !deletedOgg || !deletedLowpass) {
             LOG.warning("Deleted recording: " + deletedRecording);
@@ -103,86 +145,67 @@ public class RecordingServlet extends HttpServlet {
         }
     }
 
-    private void writeRecording(HttpServletRequest request, HttpServletResponse response, Recording recording) throws IOException {
-        // If the request has a Range header then return only the requested number of bytes
-        String range = request.getHeader("Range");
-        if (range != null) {
-            Matcher matcher = RANGE_HEADER_PATTERN.matcher(range);
-            if (matcher.matches()) {
-                int byteFrom = Integer.parseInt(matcher.group(1));
-                int byteTo = Integer.parseInt(matcher.group(2));
-                writeRecording(response, recording, byteFrom, byteTo);
-                return;
-            }
-        }
-        writeRecording(response, recording);
+    /**
+     * Sends the recording, or just a status if there's no body to send. Returns true if a
+     * writer was started to send the body, which completes the request once it's done.
+     */
+    private boolean writeRecording(HttpServletRequest request, HttpServletResponse response, Recording recording) throws IOException {
+        FileIndex.FileInfo fileInfo = getFileInfo(recording);
+        String etag = "\"" + Long.toHexString(fileInfo.size()) + "-" + Long.toHexString(fileInfo.mtime()) + "\"";
+        return new FileResponse(() -> newFileWriter(recording), getContentType(recording), fileInfo, etag)
+                .send(request, response);
     }
 
-    private void writeRecording(HttpServletResponse response, Recording recording) throws IOException {
-        int contentLength = getFileSize(recording);
-        response.setHeader("Content-Length", String.valueOf(contentLength));
-        try (FileInputStream fis = new FileInputStream(recording.file)) {
-            fis.transferTo(response.getOutputStream());
-        } catch (EOFException e) {
-            // If the browser closes its connection, just return without error
-            LOG.warning("Browser closed connection");
-        }
+    private AsyncFileWriter newFileWriter(Recording recording) {
+        return new AsyncFileWriter(recording.file.toPath(), getCachedFile(recording));
     }
 
-    private void writeRecording(HttpServletResponse response, Recording recording, int byteFrom, int byteTo) throws IOException {
-        byte[] buffer = new byte[1024];
-
-        // This may or may not match what was requested
-        // I don't think it's possible to set the Content-Length header
-        // and also to stream the data from disk
-        int fileSize = getFileSize(recording);
-        // Add 1 to byteTo because it's inclusive
-        int contentLength = Math.min((byteTo + 1) - byteFrom, fileSize);
-        response.setHeader("Content-Length", String.valueOf(contentLength));
-        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
-        response.setHeader("Content-Range", "bytes " + byteFrom + "-" + byteTo + "/" + fileSize);
-
-        LOG.info("Getting range " + byteFrom + " to " + byteTo + " (" + contentLength + ")");
-
-        OutputStream outputStream = response.getOutputStream();
-        int totalBytesRead = 0;
-        try (FileInputStream fis = new FileInputStream(recording.file)) {
-            // Skip the initial bytes
-            fis.skip(byteFrom);
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) > 0) {
-                totalBytesRead += bytesRead;
-                if (totalBytesRead > contentLength) {
-                    outputStream.write(buffer, 0, totalBytesRead - contentLength);
-                    break;
-                }
-                outputStream.write(buffer, 0, bytesRead);
-            }
-        } catch (EOFException e) {
-            // If the browser closes its connection, just return without error
-            LOG.warning("Browser closed connection after " + totalBytesRead +
-                    " of " + contentLength + " bytes were transferred");
+    private String getContentType(Recording recording) {
+        // Recordings are stored with the extension taken from their audio/* content type
+        int extensionIndex = recording.fileName.lastIndexOf(".");
+        if (extensionIndex == -1) {
+            return "application/octet-stream";
         }
+        return "audio/" + recording.fileName.substring(extensionIndex + 1).toLowerCase();
     }
 
-    private int getFileSize(Recording recording) throws IOException {
-        long fileSize = Files.size(recording.file.toPath());
-        if (fileSize > Integer.MAX_VALUE) {
-            throw new AudioServerException("Audio file is too big!");
-        }
-        return (int) fileSize;
+    private FileIndex.FileInfo getFileInfo(Recording recording) {
+        return getRecordingIndex().get(recording.token, recording.fileName)
+                .orElseThrow(() -> new AudioServerException("Recording file does not exist:" + recording.file.getAbsolutePath()));
     }
 
     private void validateRecording(Recording recording) {
-        if (!recording.file.exists()) {
+        if (!getRecordingIndex().exists(recording.token, recording.fileName)) {
             throw new AudioServerException("Recording file does not exist:" + recording.file.getAbsolutePath());
         }
     }
 
+    /**
+     * If the recording doesn't exist but can be made on demand, starts making it and returns
+     * a future that completes once it's done. Returns null if the recording should be served
+     * or rejected as it is. Only the lowpass files are made on demand so this is overridden
+     * by RadioServlet.
+     */
+    protected CompletableFuture<Boolean> generateIfMissing(Recording recording) {
+        return null;
+    }
+
+    /**
+     * Returns the contents of the recording from memory if it is cached, or null to read
+     * it from disk. Only converted files are cached so this is overridden by RadioServlet.
+     */
+    protected ByteBuffer getCachedFile(Recording recording) {
+        return null;
+    }
+
     public Path getRecordingLocation() {
         return ServletHelper.RECORDINGS;
     }
 
+    public FileIndex getRecordingIndex() {
+        return ServletHelper.RECORDINGS_INDEX;
+    }
+
     private Recording getRecording(HttpServletRequest request) {
         String path = request.getPathInfo();
         Matcher matcher = AUDIO_FILE_PATTERN.matcher(path);
@@ -191,7 +214,7 @@ public class RecordingServlet extends HttpServlet {
             String token = matcher.group(1);
             String fileName = matcher.group(2);
             Recording recording = new Recording(recordingLocation, token, fileName);
-            if (!recording.file.exists()) {
+            if (!getRecordingIndex().exists(token, fileName)) {
                 // If we got a URL encoded file name containing a space, then we'll get it
                 // as a +. Try replacing + with " "
                 recording = new Recording(recordingLocation, token, fileName.replaceAll("\\+", " "));
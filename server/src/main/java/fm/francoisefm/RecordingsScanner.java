@@ -0,0 +1,145 @@
+package fm.francoisefm;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Brings the recordings table in line with what is on disk. This only needs to run at
+ * startup: once a recording is in the table it is kept up to date by the servlets and
+ * the converter. Each station is scanned independently so they are scanned in parallel.
+ */
+public class RecordingsScanner {
+
+    private static final Logger LOG = Logger.getLogger("RecordingsScanner");
+
+    // Scanning is mostly waiting on the disk and hashing so a handful of threads is plenty
+    private static final int MAX_SCAN_THREADS = 8;
+
+    public static void scan() {
+        long startTime = System.currentTimeMillis();
+        List<Station> stations = StationsDb.getStations();
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_SCAN_THREADS));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> scans = new ArrayList<>();
+            for (Station station : stations) {
+                scans.add(executor.submit(() -> scanStation(station)));
+            }
+            // Wait for the stations in order so any errors are logged in a predictable order
+            for (int i = 0; i < scans.size(); i++) {
+                try {
+                    scans.get(i).get();
+                } catch (ExecutionException e) {
+                    LOG.log(Level.WARNING, "Error scanning station " + stations.get(i).token(), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new AudioServerException("Interrupted while scanning recordings", e);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long timeTaken = System.currentTimeMillis() - startTime;
+        LOG.info("Scanned recordings for " + stations.size() + " stations on " + threads + " threads in " + timeTaken + "ms");
+    }
+
+    private static void scanStation(Station station) {
+        UserId userId = new UserId(station.name(), station.token());
+        File userDir = ServletHelper.RECORDINGS.resolve(station.token()).toFile();
+
+        List<RecordingInfo> knownRecordings = StationsDb.getRecordings(station.token());
+        Set<String> knownFiles = knownRecordings.stream().map(RecordingInfo::file).collect(Collectors.toSet());
+
+        // Forget about any recordings that have been removed from disk and convert again any
+        // whose converted files have gone missing
+        for (RecordingInfo recording : knownRecordings) {
+            if (!recording.name().equals(station.name())) {
+                continue;
+            }
+            File file = new File(userDir, recording.file());
+            if (!file.exists()) {
+                LOG.info("Removing missing recording " + recording.token() + "/" + recording.file());
+                StationsDb.deleteRecording(recording.token(), recording.file());
+            } else if (recording.state() == ConversionState.CONVERTED && !hasConvertedFiles(recording)) {
+                LOG.info("Converted files are missing or out of date for " + recording.token() + "/" + recording.file());
+                StationsDb.markPending(recording.token(), recording.file());
+            } else if (recording.state() == ConversionState.CONVERTED && recording.oggInfo() == null) {
+                // Converted before the ogg info was saved
+                AudioConverter.recordOggInfo(recording.token(), recording.file(), AudioConverter.convertPathToOgg(file));
+            }
+        }
+
+        File[] userFiles = userDir.listFiles();
+        if (userFiles == null) {
+            return;
+        }
+        Pattern ownFilePattern = Pattern.compile("^" + Pattern.quote(userId.sanitisedName()) + "_([0-9][0-9])\\.\\w+$");
+        for (File file : userFiles) {
+            if (Recording.isUploadTempFile(file.getName())) {
+                // Left over from an upload that was in progress when the server stopped
+                LOG.info("Deleting partial upload " + file);
+                if (!file.delete()) {
+                    LOG.warning("Could not delete partial upload " + file);
+                }
+                continue;
+            }
+            if (knownFiles.contains(file.getName()) || !ownFilePattern.matcher(file.getName()).matches()) {
+                continue;
+            }
+            LOG.info("Adding recording " + station.token() + "/" + file.getName());
+            File recording = ServletHelper.RECORDINGS.resolve(station.token()).resolve(file.getName()).toFile();
+            StationsDb.addRecording(userId, Recording.slotOf(file.getName()), recording);
+
+            if (isConverted(recording)) {
+                File ogg = AudioConverter.convertPathToOgg(recording);
+                File lowpass = AudioConverter.convertPathToOggLowpass(recording);
+                boolean hasLowpass = lowpass.exists();
+                AudioConverter.recordOggInfo(station.token(), file.getName(), ogg);
+                StationsDb.markConverted(station.token(), file.getName(),
+                        AudioConverter.relativeToConverted(ogg), FileHashes.md5(ogg.toPath()),
+                        hasLowpass ? AudioConverter.relativeToConverted(lowpass) : null,
+                        hasLowpass ? FileHashes.md5(lowpass.toPath()) : null);
+            }
+        }
+    }
+
+    /**
+     * Checks that the converted files of a recording the table says is converted are still
+     * there. Their times aren't compared with the recording's as they can be links to the
+     * older files of an identical recording.
+     */
+    private static boolean hasConvertedFiles(RecordingInfo recording) {
+        if (recording.convertedFile() == null || !Files.isRegularFile(ServletHelper.CONVERTED.resolve(recording.convertedFile()))) {
+            return false;
+        }
+        if (recording.lowpassFile() != null && Files.isRegularFile(ServletHelper.CONVERTED.resolve(recording.lowpassFile()))) {
+            return true;
+        }
+        return ServletHelper.AUDIO_CONVERTER.isLowpassOnDemand();
+    }
+
+    private static boolean isConverted(File recording) {
+        File ogg = AudioConverter.convertPathToOgg(recording);
+        File lowpass = AudioConverter.convertPathToOggLowpass(recording);
+        // Converted files older than the recording were made from a previous upload. The
+        // lowpass file is allowed to be missing if it's only made when it's first requested.
+        if (!ogg.exists() || ogg.lastModified() < recording.lastModified()) {
+            return false;
+        }
+        if (lowpass.exists()) {
+            return lowpass.lastModified() >= recording.lastModified();
+        }
+        return ServletHelper.AUDIO_CONVERTER.isLowpassOnDemand();
+    }
+}
@@ -1,5 +1,7 @@
 package fm.francoisefm;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
@@ -7,6 +9,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.Base64;
 import java.util.Properties;
 import java.util.logging.Level;
@@ -18,13 +21,23 @@ public class ServletHelper {
 
     private static final Logger LOG = Logger.getLogger("ServletHelper");
 
+    private static final String BASIC_AUTH_USERNAME = "Melville";
+    private static final String CONVERSION_RETRY_AFTER_SECONDS = "30";
+
     public static final String UUID_PATTERN = "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}";
     private static final Pattern AUTHORIZATION_HEADER = Pattern.compile("^Bearer ([A-Za-z0-9+/=]+)$");
+    private static final Pattern AUDIO_CONTAINER = Pattern.compile("^audio/(\\w+)", Pattern.CASE_INSENSITIVE);
     private static final Pattern USER_ID = Pattern.compile("^(.+)(" + UUID_PATTERN + ")$");
     public static final Path RECORDINGS = Path.of("recordings");
     public static final Path CONVERTED = Path.of("converted");
+    public static final Path UPLOADS = Path.of("uploads");
     public static final Properties PROPERTIES = readProperties();
 
+    public static final FileIndex RECORDINGS_INDEX = new FileIndex(RECORDINGS);
+    public static final FileIndex CONVERTED_INDEX = new FileIndex(CONVERTED);
+    static final SlotAllocator RECORDING_SLOTS = new SlotAllocator();
+    public static final AudioFileCache AUDIO_FILE_CACHE = AudioFileCache.fromProperties(PROPERTIES);
+
     public static final AudioConverter AUDIO_CONVERTER = new AudioConverter();
 
     private static Properties readProperties() {
@@ -47,16 +60,66 @@ public class ServletHelper {
         }
     }
 
+    public static void validateBasicAuth(HttpServletRequest request) {
+        String authorizationHeader = request.getHeader("Authorization");
+        if (authorizationHeader == null || !authorizationHeader.startsWith("Basic ")) {
+            throw new AudioServerException("Unauthorised");
+        }
+        String basicAuthPass = PROPERTIES.getProperty("BASIC_AUTH_PASS");
+        byte[] expectedUsernameAndPassword = (BASIC_AUTH_USERNAME + ":" + basicAuthPass).getBytes(StandardCharsets.UTF_8);
+        String encodedUsernameAndPassword = authorizationHeader.substring("Basic ".length());
+        byte[] decodedUsernameAndPassword = Base64.getDecoder().decode(encodedUsernameAndPassword);
+
+        if (!MessageDigest.isEqual(expectedUsernameAndPassword, decodedUsernameAndPassword)) {
+            LOG.warning("Received incorrect basic auth password: " + new String(decodedUsernameAndPassword));
+            throw new AudioServerException("Unauthorised basic auth attempt");
+        }
+    }
+
     public static void setAllowHeaders(HttpServletRequest request, HttpServletResponse response) {
         String origin = request.getHeader("Origin");
         if (origin != null && (origin.startsWith("http://localhost") || origin.startsWith("https://francoise.fm"))) {
             response.addHeader("Access-Control-Allow-Origin", origin);
         }
-        response.addHeader("Access-Control-Allow-Methods", "GET, POST, DELETE");
-        response.addHeader("Access-Control-Allow-Headers", "Content-Type, Authorization");
+        response.addHeader("Access-Control-Allow-Methods", "GET, HEAD, POST, PATCH, DELETE");
+        response.addHeader("Access-Control-Allow-Headers", "Content-Type, Authorization, Range, If-Range, If-None-Match, If-Modified-Since, Upload-Offset, Upload-Length");
         response.addHeader("Access-Control-Allow-Credentials", "true");
         response.addHeader("Vary", "Origin");
-        response.addHeader("Access-Control-Expose-Headers", "Location");
+        response.addHeader("Access-Control-Expose-Headers", "Location, ETag, Content-Range, Accept-Ranges, Upload-Offset, Upload-Length");
+    }
+
+    /**
+     * Checks an If-None-Match header against the current entity tag. Weak comparison is
+     * allowed here so W/"x" matches "x".
+     */
+    public static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static boolean acceptsGzip(HttpServletRequest request) {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String encoding : acceptEncoding.split(",")) {
+            String[] parts = encoding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                return parts.length < 2 || !parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
     }
 
     public static UserId getUserId(HttpServletRequest request) {
@@ -89,6 +152,51 @@ public class ServletHelper {
         }
     }
 
+    /**
+     * Logs how long a request took. If the request went async the time is logged once the
+     * response has actually been sent rather than when the servlet method returned.
+     */
+    public static void logWhenComplete(Logger log, String method, long startTime, HttpServletRequest request, HttpServletResponse response) {
+        if (!request.isAsyncStarted()) {
+            long timeTaken = System.currentTimeMillis() - startTime;
+            log.info(method + " (" + timeTaken + "ms): " + response.getStatus());
+            return;
+        }
+        request.getAsyncContext().addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                long timeTaken = System.currentTimeMillis() - startTime;
+                log.info(method + " (" + timeTaken + "ms): " + response.getStatus());
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+    }
+
+    /**
+     * Turns an upload away with a 503 if the conversion queue is already full. Returns true
+     * if the request was rejected.
+     */
+    public static boolean rejectIfConversionQueueFull(HttpServletResponse response) {
+        if (!AUDIO_CONVERTER.isQueueFull()) {
+            return false;
+        }
+        LOG.warning("Conversion queue is full with " + AUDIO_CONVERTER.getQueueDepth() + " jobs. Rejecting upload.");
+        response.setHeader("Retry-After", CONVERSION_RETRY_AFTER_SECONDS);
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return true;
+    }
+
     public static File getUserDir(UserId userId) {
         File userDir = RECORDINGS.resolve(userId.token).toFile();
         if (!userDir.exists()) {
@@ -98,4 +206,25 @@ public class ServletHelper {
         }
         return userDir;
     }
+
+    public static String getFileExtension(String contentType) {
+        if (contentType != null) {
+            Matcher matcher = AUDIO_CONTAINER.matcher(contentType);
+            if (matcher.find()) {
+                return "." + matcher.group(1);
+            }
+        }
+        LOG.warning("Unrecognised contentType. Defaulting to .ogg.");
+        return ".ogg";
+    }
+
+    /**
+     * Reserves the next free slot for the user's new recording. The slot must be released
+     * if the recording is never written.
+     */
+    public static File getNewAudioFile(UserId userId, String fileExtension) {
+        File userDir = getUserDir(userId);
+        int slot = RECORDING_SLOTS.reserve(userId);
+        return new File(userDir, String.format(userId.sanitisedName() + "_%02d", slot) + fileExtension);
+    }
 }
@@ -0,0 +1,95 @@
+package fm.francoisefm;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Hands out the slot numbers used in recording file names (name_01.webm, name_02.webm...).
+ * Each user's used slots are kept in a bitset which is seeded from their directory the first
+ * time they upload, so finding a free slot doesn't need to check the disk. Reserving a slot
+ * is done under the user's lock so two uploads at once can never get the same file name.
+ */
+class SlotAllocator {
+
+    private static final Logger LOG = Logger.getLogger("SlotAllocator");
+
+    static final int MAX_SLOT = 99;
+
+    // Matches recordings and their upload temp files, capturing the name and slot
+    private static final Pattern RECORDING_FILE = Pattern.compile("^\\.?(.+)_([0-9][0-9])\\.\\w+(\\.part)?$");
+
+    private final Map<String, BitSet> usedSlots = new ConcurrentHashMap<>();
+
+    /**
+     * Reserves the lowest free slot for the user. The slot stays reserved until it's
+     * released, either because the upload failed or the recording was deleted.
+     */
+    int reserve(UserId userId) {
+        String sanitisedName = userId.sanitisedName();
+        BitSet used = usedSlots.computeIfAbsent(key(userId.token, sanitisedName), k -> seed(userId.token, sanitisedName));
+        synchronized (used) {
+            int slot = used.nextClearBit(1);
+            if (slot > MAX_SLOT) {
+                // Files might have been removed behind our back so check the disk before giving up
+                used.clear();
+                used.or(seed(userId.token, sanitisedName));
+                slot = used.nextClearBit(1);
+                if (slot > MAX_SLOT) {
+                    throw new AudioServerException("User has run out of available files: " + userId);
+                }
+            }
+            used.set(slot);
+            return slot;
+        }
+    }
+
+    void release(String token, String fileName) {
+        Matcher matcher = RECORDING_FILE.matcher(fileName);
+        if (!matcher.matches()) {
+            return;
+        }
+        String sanitisedName = matcher.group(1);
+        int slot = Integer.parseInt(matcher.group(2));
+        BitSet used = usedSlots.get(key(token, sanitisedName));
+        if (used == null) {
+            return;
+        }
+        synchronized (used) {
+            // Older recordings can share a slot if they have different extensions
+            if (!slotInUse(token, sanitisedName, slot)) {
+                used.clear(slot);
+            }
+        }
+    }
+
+    private boolean slotInUse(String token, String sanitisedName, int slot) {
+        String prefix = String.format(sanitisedName + "_%02d.", slot);
+        File[] files = ServletHelper.RECORDINGS.resolve(token).toFile()
+                .listFiles((dir, name) -> name.startsWith(prefix) || name.startsWith("." + prefix));
+        return files != null && files.length > 0;
+    }
+
+    private BitSet seed(String token, String sanitisedName) {
+        BitSet used = new BitSet(MAX_SLOT + 1);
+        String[] fileNames = ServletHelper.RECORDINGS.resolve(token).toFile().list();
+        if (fileNames != null) {
+            for (String fileName : fileNames) {
+                Matcher matcher = RECORDING_FILE.matcher(fileName);
+                if (matcher.matches() && matcher.group(1).equals(sanitisedName)) {
+                    used.set(Integer.parseInt(matcher.group(2)));
+                }
+            }
+        }
+        LOG.info("Found " + used.cardinality() + " used slots for " + token + "/" + sanitisedName);
+        return used;
+    }
+
+    private static String key(String token, String sanitisedName) {
+        return token + "/" + sanitisedName;
+    }
+}
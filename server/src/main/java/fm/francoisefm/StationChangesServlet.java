@@ -0,0 +1,153 @@
+package fm.francoisefm;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Lets a radio fetch only the stations and files that changed since the last version
+ * it saw, rather than the whole manifest. The version comes from the Manifest-Version
+ * header of /audio/radio or from the previous response of this servlet. Old changes are
+ * deleted after a while, so a radio that is too far behind gets a 410 and has to fetch
+ * the whole manifest again.
+ */
+public class StationChangesServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger("StationChangesServlet");
+    private static final Pattern VERSION_PATTERN = Pattern.compile("^/([0-9]{1,18})$");
+
+    private static class StationChanges {
+        final String token;
+        final String name;
+        final Map<String, String> files = new LinkedHashMap<>();
+        final Set<String> deleted = new LinkedHashSet<>();
+
+        StationChanges(String token, String name) {
+            this.token = token;
+            this.name = name;
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) {
+        long startTime = System.currentTimeMillis();
+        LOG.info("GET " + ServletHelper.getRequestURL(request));
+
+        try {
+            handleGet(request, response);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Error handling GET", e);
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        }
+        long timeTaken = System.currentTimeMillis() - startTime;
+        LOG.info("GET (" + timeTaken + "ms): " + response.getStatus());
+    }
+
+    private void handleGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long since = getVersion(request);
+        ServletHelper.validateQueryString(request);
+        ServletHelper.validateBasicAuth(request);
+
+        long latestVersion = StationsDb.getLatestChangeVersion();
+        if (since > latestVersion) {
+            // The radio has seen a version we don't know about, most likely because the
+            // database was reset. It needs to start again from the full manifest.
+            LOG.warning("Requested version " + since + " is newer than latest version " + latestVersion);
+            response.setStatus(HttpServletResponse.SC_GONE);
+            return;
+        }
+
+        List<Change> changes = StationsDb.getChangesSince(since);
+        // Checked after reading the changes so that we can't miss ones deleted in between
+        long compactedVersion = StationsDb.getCompactedChangeVersion();
+        if (since < compactedVersion) {
+            LOG.info("Requested version " + since + " is older than the change log, which starts after " + compactedVersion);
+            response.setStatus(HttpServletResponse.SC_GONE);
+            return;
+        }
+        long version = changes.isEmpty() ? since : changes.get(changes.size() - 1).version();
+
+        // Fold the changes so that only the latest state of each file is returned
+        Map<String, StationChanges> changesByStation = new LinkedHashMap<>();
+        for (Change change : changes) {
+            StationChanges stationChanges = changesByStation.computeIfAbsent(change.token() + "/" + change.name(),
+                    k -> new StationChanges(change.token(), change.name()));
+            switch (change.type()) {
+                case FILE -> {
+                    stationChanges.deleted.remove(change.path());
+                    stationChanges.files.put(change.path(), change.hash());
+                }
+                case DELETED -> {
+                    stationChanges.files.remove(change.path());
+                    stationChanges.deleted.add(change.path());
+                }
+                case STATION -> {
+                    // Nothing to fold, the station is included in the response below
+                }
+            }
+        }
+
+        JsonWriter writer = new JsonWriter();
+        writer.beginObject();
+        writer.name("version").value(version);
+        writer.name("stations").beginArray();
+        for (StationChanges stationChanges : changesByStation.values()) {
+            Optional<Station> station = StationsDb.getStation(new UserId(stationChanges.name, stationChanges.token));
+            writer.beginObject();
+            writer.name("name").value(stationChanges.name);
+            writer.name("token").value(stationChanges.token);
+            writer.name("frequency").value(station.map(Station::frequency).orElse(0));
+            writer.name("files").beginArray();
+            Map<String, OggInfo> oggInfoByFile = getOggInfoByFile(stationChanges);
+            for (Map.Entry<String, String> file : stationChanges.files.entrySet()) {
+                RadioManifest.writeFile(writer, file.getKey(), file.getValue(), oggInfoByFile.get(file.getKey()));
+            }
+            writer.endArray();
+            writer.name("deleted").beginArray();
+            for (String path : stationChanges.deleted) {
+                writer.value(path);
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+
+        response.setContentType("application/json;charset=utf-8");
+        response.setContentLength(writer.size());
+        writer.writeTo(response.getOutputStream());
+
+        response.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    /**
+     * The length and format of the station's converted files, as listed in the manifest
+     */
+    private Map<String, OggInfo> getOggInfoByFile(StationChanges stationChanges) {
+        if (stationChanges.files.isEmpty()) {
+            return Map.of();
+        }
+        Map<String, OggInfo> oggInfoByFile = new HashMap<>();
+        for (RecordingInfo recording : StationsDb.getRecordings(new UserId(stationChanges.name, stationChanges.token))) {
+            if (recording.convertedFile() != null && recording.oggInfo() != null) {
+                oggInfoByFile.put(recording.convertedFile(), recording.oggInfo());
+            }
+        }
+        return oggInfoByFile;
+    }
+
+    private long getVersion(HttpServletRequest request) {
+        String path = request.getPathInfo();
+        Matcher matcher = path == null ? null : VERSION_PATTERN.matcher(path);
+        if (matcher == null || !matcher.matches()) {
+            throw new AudioServerException("Invalid path: " + path);
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+}
@@ -0,0 +1,59 @@
+package fm.francoisefm;
+
+import java.util.*;
+
+/**
+ * In memory copy of the stations table. Readers get an immutable snapshot so lookups never
+ * need to take a lock or go to the database. Writers replace the snapshot under a lock.
+ */
+class StationRegistry {
+
+    private record Snapshot(List<Station> stations,
+                            Map<String, Station> byTokenAndName,
+                            Map<Integer, List<Station>> byFrequency) {
+
+        static Snapshot of(List<Station> stations) {
+            Map<String, Station> byTokenAndName = new HashMap<>();
+            Map<Integer, List<Station>> byFrequency = new HashMap<>();
+            for (Station station : stations) {
+                byTokenAndName.put(key(station.token(), station.name()), station);
+                byFrequency.computeIfAbsent(station.frequency(), f -> new ArrayList<>()).add(station);
+            }
+            byFrequency.replaceAll((f, list) -> List.copyOf(list));
+            return new Snapshot(List.copyOf(stations), Map.copyOf(byTokenAndName), Map.copyOf(byFrequency));
+        }
+    }
+
+    private volatile Snapshot snapshot = Snapshot.of(List.of());
+
+    private static String key(String token, String name) {
+        // Tokens are UUIDs so they can never contain the separator
+        return token + "/" + name;
+    }
+
+    synchronized void load(List<Station> stations) {
+        snapshot = Snapshot.of(stations);
+    }
+
+    synchronized void add(Station station) {
+        Snapshot current = snapshot;
+        if (current.byTokenAndName().containsKey(key(station.token(), station.name()))) {
+            return;
+        }
+        List<Station> stations = new ArrayList<>(current.stations());
+        stations.add(station);
+        snapshot = Snapshot.of(stations);
+    }
+
+    List<Station> getStations() {
+        return snapshot.stations();
+    }
+
+    Optional<Station> getStation(String token, String name) {
+        return Optional.ofNullable(snapshot.byTokenAndName().get(key(token, name)));
+    }
+
+    List<Station> getStationsOnFrequency(int frequency) {
+        return snapshot.byFrequency().getOrDefault(frequency, List.of());
+    }
+}
@@ -1,18 +1,112 @@
 package fm.francoisefm;
 
+import java.io.File;
 import java.sql.*;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class StationsDb {
 
+    private static final Logger LOG = Logger.getLogger("StationsDb");
+
     // Our frequency range is 87.0 to 107.0 which is equal to 200 different frequencies
+    private static final int MIN_FREQUENCY = 870;
     private static final int MAX_FREQUENCIES = 200;
 
     public static final String JDBC_URL = "jdbc:sqlite:francoisefm.db";
 
+    // SQLite only allows one writer at a time so rather than opening the db file on every
+    // call we keep a single connection open for writing for the lifetime of the server and
+    // serialise access to it. Prepared statements are cached against that connection.
+    private static final Object LOCK = new Object();
+    private static final Map<String, PreparedStatement> STATEMENTS = new HashMap<>();
+    private static Connection connection;
+
+    // Queries that only read go through a few read only connections of their own so that, in
+    // WAL mode, they don't have to wait for the writer or for each other
+    private static final int READ_CONNECTIONS = 4;
+    private static final BlockingQueue<ReadConnection> READERS = new ArrayBlockingQueue<>(READ_CONNECTIONS);
+
+    static {
+        for (int i = 0; i < READ_CONNECTIONS; i++) {
+            READERS.add(new ReadConnection());
+        }
+    }
+
+    private static final StationRegistry REGISTRY = new StationRegistry();
+    private static final FrequencyAllocator FREQUENCIES = new FrequencyAllocator(MIN_FREQUENCY, MAX_FREQUENCIES);
+
     private static Connection connect() throws SQLException {
-        return DriverManager.getConnection(JDBC_URL);
+        if (connection == null || connection.isClosed()) {
+            STATEMENTS.clear();
+            connection = DriverManager.getConnection(JDBC_URL);
+            try (Statement stmt = connection.createStatement()) {
+                // WAL lets readers carry on while a write is in progress and NORMAL sync
+                // is safe in WAL mode while avoiding an fsync on every commit
+                stmt.execute("PRAGMA journal_mode = WAL");
+                stmt.execute("PRAGMA synchronous = NORMAL");
+                configure(stmt);
+            }
+        }
+        return connection;
+    }
+
+    private static void configure(Statement stmt) throws SQLException {
+        // Negative cache size is in KiB
+        stmt.execute("PRAGMA cache_size = -8192");
+        stmt.execute("PRAGMA temp_store = MEMORY");
+        stmt.execute("PRAGMA busy_timeout = 5000");
+    }
+
+    private static PreparedStatement prepare(String sql) throws SQLException {
+        Connection conn = connect();
+        PreparedStatement pstmt = STATEMENTS.get(sql);
+        if (pstmt == null || pstmt.isClosed()) {
+            pstmt = conn.prepareStatement(sql);
+            STATEMENTS.put(sql, pstmt);
+        }
+        pstmt.clearParameters();
+        return pstmt;
+    }
+
+    /**
+     * One of the read only connections along with the statements prepared against it. Only
+     * used by whichever thread has taken it from READERS.
+     */
+    private static class ReadConnection {
+
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private Connection connection;
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            if (connection == null || connection.isClosed()) {
+                statements.clear();
+                connection = DriverManager.getConnection(JDBC_URL);
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("PRAGMA query_only = ON");
+                    configure(stmt);
+                }
+            }
+            PreparedStatement pstmt = statements.get(sql);
+            if (pstmt == null || pstmt.isClosed()) {
+                pstmt = connection.prepareStatement(sql);
+                statements.put(sql, pstmt);
+            }
+            pstmt.clearParameters();
+            return pstmt;
+        }
+    }
+
+    private static ReadConnection takeReader() {
+        try {
+            return READERS.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AudioServerException("Interrupted waiting for a db connection", e);
+        }
     }
 
     public static void initDb() {
@@ -26,40 +120,145 @@ public class StationsDb {
                 	UNIQUE(token, name) ON CONFLICT IGNORE
                 );""";
 
-        try (Connection conn = connect();
-             Statement stmt = conn.createStatement()) {
-            // create a new table
-            stmt.execute(sql);
-        } catch (SQLException e) {
-            System.out.println(e.getMessage());
+        String recordingsSql = """
+                CREATE TABLE IF NOT EXISTS recordings (
+                	token text NOT NULL,
+                	name text NOT NULL,
+                	slot INTEGER NOT NULL,
+                	file text NOT NULL,
+                	converted_file text,
+                	lowpass_file text,
+                	size INTEGER NOT NULL,
+                	mtime INTEGER NOT NULL,
+                	hash text,
+                	lowpass_hash text,
+                	state text NOT NULL,
+                	attempts INTEGER NOT NULL DEFAULT 0,
+                	source_hash text,
+                	duration_ms INTEGER,
+                	bitrate INTEGER,
+                	channels INTEGER,
+                	sample_rate INTEGER,
+                	UNIQUE(token, file) ON CONFLICT REPLACE
+                );""";
+
+        String fileHashesSql = """
+                CREATE TABLE IF NOT EXISTS file_hashes (
+                	path text PRIMARY KEY,
+                	size INTEGER NOT NULL,
+                	mtime INTEGER NOT NULL,
+                	md5 text NOT NULL,
+                	crc32c text NOT NULL,
+                	sha256 text
+                );""";
+
+        String changesSql = """
+                CREATE TABLE IF NOT EXISTS changes (
+                	version INTEGER PRIMARY KEY AUTOINCREMENT,
+                	token text NOT NULL,
+                	name text NOT NULL,
+                	path text,
+                	hash text,
+                	type text NOT NULL
+                );""";
+
+        // Each time old changes are deleted we record the latest version that went, so radios
+        // that haven't synced since then can be told to fetch the whole manifest instead
+        String compactedChangesSql = """
+                CREATE TABLE IF NOT EXISTS compacted_changes (
+                	version INTEGER PRIMARY KEY,
+                	time INTEGER NOT NULL
+                );""";
+
+        String uploadsSql = """
+                CREATE TABLE IF NOT EXISTS upload_sessions (
+                	id text PRIMARY KEY,
+                	token text NOT NULL,
+                	name text NOT NULL,
+                	extension text NOT NULL,
+                	length INTEGER,
+                	updated INTEGER NOT NULL
+                );""";
+
+        synchronized (LOCK) {
+            try (Statement stmt = connect().createStatement()) {
+                // create a new table
+                stmt.execute(sql);
+                stmt.execute(recordingsSql);
+                addColumnIfMissing(stmt, "recordings", "attempts", "INTEGER NOT NULL DEFAULT 0");
+                addColumnIfMissing(stmt, "recordings", "source_hash", "text");
+                addColumnIfMissing(stmt, "recordings", "duration_ms", "INTEGER");
+                addColumnIfMissing(stmt, "recordings", "bitrate", "INTEGER");
+                addColumnIfMissing(stmt, "recordings", "channels", "INTEGER");
+                addColumnIfMissing(stmt, "recordings", "sample_rate", "INTEGER");
+                stmt.execute(fileHashesSql);
+                addColumnIfMissing(stmt, "file_hashes", "sha256", "text");
+                stmt.execute(changesSql);
+                stmt.execute(compactedChangesSql);
+                stmt.execute(uploadsSql);
+                stmt.execute("CREATE INDEX IF NOT EXISTS recordings_by_station ON recordings (token, name, mtime)");
+                stmt.execute("CREATE INDEX IF NOT EXISTS recordings_by_state ON recordings (state, mtime)");
+                stmt.execute("CREATE INDEX IF NOT EXISTS recordings_by_source ON recordings (source_hash)");
+            } catch (SQLException e) {
+                LOG.log(Level.SEVERE, "Error creating tables", e);
+            }
+        }
+        List<Station> stations = loadStations();
+        REGISTRY.load(stations);
+        for (Station station : stations) {
+            FREQUENCIES.claim(station.frequency());
         }
     }
 
+    /**
+     * Brings tables created by an older version of the server up to date
+     */
+    private static void addColumnIfMissing(Statement stmt, String table, String column, String definition) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (rs.getString("name").equals(column)) {
+                    return;
+                }
+            }
+        }
+        stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+    }
+
     public static void createStation(UserId userId, int frequency) {
 
-        // SQL statement for creating a new table
         String sql = "INSERT INTO stations (token, name, frequency) VALUES (?, ?, ?)";
 
-        try (Connection conn = connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setString(1, userId.token);
-            pstmt.setString(2, userId.name);
-            pstmt.setInt(3, frequency);
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            throw new AudioServerException("Error inserting into db: ", e);
+        synchronized (LOCK) {
+            try {
+                PreparedStatement pstmt = prepare(sql);
+                pstmt.setString(1, userId.token);
+                pstmt.setString(2, userId.name);
+                pstmt.setInt(3, frequency);
+                pstmt.executeUpdate();
+                addChange(userId.token, userId.name, null, null, Change.Type.STATION);
+            } catch (SQLException e) {
+                throw new AudioServerException("Error inserting into db: ", e);
+            }
+            // Write through to the in memory registry once the row is safely stored
+            REGISTRY.add(new Station(userId.token, userId.name, frequency));
         }
+        RadioManifest.invalidate();
     }
 
     public static List<Station> getStations() {
+        return REGISTRY.getStations();
+    }
+
+    public static Optional<Station> getStation(UserId userId) {
+        return REGISTRY.getStation(userId.token, userId.name);
+    }
+
+    private static List<Station> loadStations() {
 
-        // SQL statement for creating a new table
         String sql = "SELECT token, name, frequency FROM stations";
 
-        try (Connection conn = connect();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+        ReadConnection reader = takeReader();
+        try (ResultSet rs = reader.prepare(sql).executeQuery()) {
 
             final List<Station> recordings = new ArrayList<>();
             while (rs.next()) {
@@ -69,54 +268,724 @@ public class StationsDb {
             return recordings;
         } catch (SQLException e) {
             throw new AudioServerException("Error querying db: ", e);
+        } finally {
+            READERS.add(reader);
         }
     }
 
-    public static Optional<Station> getStation(UserId userId) {
+    public static int calculateFrequency(UserId userId) {
+        Optional<Station> existingStation = getStation(userId);
+        if (existingStation.isPresent()) {
+            return existingStation.get().frequency();
+        }
 
-        // SQL statement for creating a new table
-        String sql = "SELECT token, name, frequency FROM stations WHERE token = ? AND name = ?";
+        // Hold the lock between checking for the station and creating it so that two
+        // requests for the same new user can't both create a station
+        synchronized (LOCK) {
+            existingStation = getStation(userId);
+            if (existingStation.isPresent()) {
+                return existingStation.get().frequency();
+            }
+
+            OptionalInt freeFrequency = FREQUENCIES.allocate();
+            if (freeFrequency.isEmpty()) {
+                int sharedFrequency = leastUsedFrequency();
+                LOG.warning("No free frequencies left. Sharing " + sharedFrequency + " with " + userId);
+                createStation(userId, sharedFrequency);
+                return sharedFrequency;
+            }
+
+            int frequency = freeFrequency.getAsInt();
+            try {
+                createStation(userId, frequency);
+            } catch (AudioServerException e) {
+                FREQUENCIES.release(frequency);
+                throw e;
+            }
+            return frequency;
+        }
+    }
+
+    private static int leastUsedFrequency() {
+        int leastUsed = MIN_FREQUENCY;
+        int leastStations = Integer.MAX_VALUE;
+        for (int frequency = MIN_FREQUENCY; frequency < MIN_FREQUENCY + MAX_FREQUENCIES; frequency++) {
+            int stations = REGISTRY.getStationsOnFrequency(frequency).size();
+            if (stations < leastStations) {
+                leastUsed = frequency;
+                leastStations = stations;
+            }
+        }
+        return leastUsed;
+    }
+
+    private static Station toStation(ResultSet rs) throws SQLException {
+        return new Station(rs.getString("token"), rs.getString("name"), rs.getInt("frequency"));
+    }
+
+    public static void addRecording(UserId userId, int slot, File recording) {
+
+        String sql = """
+                INSERT INTO recordings (token, name, slot, file, size, mtime, state)
+                VALUES (?, ?, ?, ?, ?, ?, ?)""";
+
+        synchronized (LOCK) {
+            try {
+                PreparedStatement pstmt = prepare(sql);
+                pstmt.setString(1, userId.token);
+                pstmt.setString(2, userId.name);
+                pstmt.setInt(3, slot);
+                pstmt.setString(4, recording.getName());
+                pstmt.setLong(5, recording.length());
+                pstmt.setLong(6, recording.lastModified());
+                pstmt.setString(7, ConversionState.PENDING.name());
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                throw new AudioServerException("Error inserting into db: ", e);
+            }
+        }
+    }
+
+    public static void markConverted(String token, String file, String convertedFile, String hash,
+                                     String lowpassFile, String lowpassHash) {
+
+        String sql = """
+                UPDATE recordings SET converted_file = ?, hash = ?, lowpass_file = ?, lowpass_hash = ?, state = ?
+                WHERE token = ? AND file = ?""";
+
+        synchronized (LOCK) {
+            try {
+                PreparedStatement pstmt = prepare(sql);
+                pstmt.setString(1, convertedFile);
+                pstmt.setString(2, hash);
+                pstmt.setString(3, lowpassFile);
+                pstmt.setString(4, lowpassHash);
+                pstmt.setString(5, ConversionState.CONVERTED.name());
+                pstmt.setString(6, token);
+                pstmt.setString(7, file);
+                pstmt.executeUpdate();
+
+                String name = getRecordingName(token, file);
+                if (name != null) {
+                    addChange(token, name, convertedFile, hash, Change.Type.FILE);
+                    if (lowpassFile != null) {
+                        addChange(token, name, lowpassFile, lowpassHash, Change.Type.FILE);
+                    }
+                }
+            } catch (SQLException e) {
+                throw new AudioServerException("Error updating db: ", e);
+            }
+        }
+        RadioManifest.invalidate();
+    }
+
+    /**
+     * Records the hash of the original upload so identical uploads can share the converted files
+     */
+    public static void setSourceHash(String token, String file, String sourceHash) {
+
+        String sql = "UPDATE recordings SET source_hash = ? WHERE token = ? AND file = ?";
+
+        synchronized (LOCK) {
+            try {
+                PreparedStatement pstmt = prepare(sql);
+                pstmt.setString(1, sourceHash);
+                pstmt.setString(2, token);
+                pstmt.setString(3, file);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                throw new AudioServerException("Error updating db: ", e);
+            }
+        }
+    }
+
+    /**
+     * Any converted recording made from an upload with the given hash
+     */
+    public static Optional<RecordingInfo> getConvertedRecordingBySource(String sourceHash) {
+
+        String sql = "SELECT * FROM recordings WHERE source_hash = ? AND state = ? LIMIT 1";
+
+        ReadConnection reader = takeReader();
+        try {
+            PreparedStatement pstmt = reader.prepare(sql);
+            pstmt.setString(1, sourceHash);
+            pstmt.setString(2, ConversionState.CONVERTED.name());
+            return toRecordings(pstmt).stream().findFirst();
+        } catch (SQLException e) {
+            throw new AudioServerException("Error querying db: ", e);
+        } finally {
+            READERS.add(reader);
+        }
+    }
+
+    /**
+     * Records the length and format of the converted file so clients don't have to download it to find out
+     */
+    public static void setOggInfo(String token, String file, OggInfo oggInfo) {
+
+        String sql = """
+                UPDATE recordings SET duration_ms = ?, bitrate = ?, channels = ?, sample_rate = ?
+                WHERE token = ? AND file = ?""";
+
+        synchronized (LOCK) {
+            try {
+                PreparedStatement pstmt = prepare(sql);
+                pstmt.setLong(1, oggInfo.durationMs());
+                pstmt.setInt(2, oggInfo.bitrate());
+                pstmt.setInt(3, oggInfo.channels());
+                pstmt.setInt(4, oggInfo.sampleRate());
+                pstmt.setString(5, token);
+                pstmt.setString(6, file);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                throw new AudioServerException("Error updating db: ", e);
+            }
+        }
+    }
+
+    /**
+     * Records the lowpass version of a converted recording once it has been generated
+     */
+    public static void markLowpassGenerated(String token, String convertedFile, String lowpassFile, String lowpassHash) {
+
+        String sql = "UPDATE recordings SET lowpass_file = ?, lowpass_hash = ? WHERE token = ? AND converted_file = ?";
+        String selectSql = "SELECT name FROM recordings WHERE token = ? AND converted_file = ?";
+
+        synchronized (LOCK) {
+            try {
+                PreparedStatement pstmt = prepare(sql);
+                pstmt.setString(1, lowpassFile);
+                pstmt.setString(2, lowpassHash);
+                pstmt.setString(3, token);
+                pstmt.setString(4, convertedFile);
+                pstmt.executeUpdate();
+
+                PreparedStatement select = prepare(selectSql);
+                select.setString(1, token);
+                select.setString(2, convertedFile);
+                try (ResultSet rs = select.executeQuery()) {
+                    if (rs.next()) {
+                        addChange(token, rs.getString("name"), lowpassFile, lowpassHash, Change.Type.FILE);
+                    }
+                }
+            } catch (SQLException e) {
+                throw new AudioServerException("Error updating db: ", e);
+            }
+        }
+        RadioManifest.invalidate();
+    }
+
+    /**
+     * Records that the lowpass version of a recording has been deleted, e.g. because it was
+     * made from an earlier upload, and lets the radios know it has gone
+     */
+    public static void markLowpassDeleted(String token, String file) {
+
+        String sql = "UPDATE recordings SET lowpass_file = NULL, lowpass_hash = NULL WHERE token = ? AND file = ?";
+        String selectSql = "SELECT name, lowpass_file FROM recordings WHERE token = ? AND file = ?";
+
+        synchronized (LOCK) {
+            try {
+                PreparedStatement select = prepare(selectSql);
+                select.setString(1, token);
+                select.setString(2, file);
+                try (ResultSet rs = select.executeQuery()) {
+                    if (!rs.next() || rs.getString("lowpass_file") == null) {
+                        return;
+                    }
+                    addChange(token, rs.getString("name"), rs.getString("lowpass_file"), null, Change.Type.DELETED);
+                }
+
+                PreparedStatement pstmt = prepare(sql);
+                pstmt.setString(1, token);
+                pstmt.setString(2, file);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                throw new AudioServerException("Error updating db: ", e);
+            }
+        }
+        RadioManifest.invalidate();
+    }
+
+    /**
+     * Records that a conversion of the recording is starting. Returns which attempt this
+     * is, or -1 if the recording has been deleted since it was queued.
+     */
+    public static int markConverting(String token, String file) {
+
+        String sql = "UPDATE recordings SET state = ?, attempts = attempts + 1 WHERE token = ? AND file = ?";
+        String selectSql = "SELECT attempts FROM recordings WHERE token = ? AND file = ?";
+
+        synchronized (LOCK) {
+            try {
+                PreparedStatement pstmt = prepare(sql);
+                pstmt.setString(1, ConversionState.CONVERTING.name());
+                pstmt.setString(2, token);
+                pstmt.setString(3, file);
+                if (pstmt.executeUpdate() == 0) {
+                    return -1;
+                }
+                PreparedStatement select = prepare(selectSql);
+                select.setString(1, token);
+                select.setString(2, file);
+                try (ResultSet rs = select.executeQuery()) {
+                    return rs.next() ? rs.getInt("attempts") : -1;
+                }
+            } catch (SQLException e) {
+                throw new AudioServerException("Error updating db: ", e);
+            }
+        }
+    }
 
-        try (Connection conn = connect();
-             PreparedStatement pstmt  = conn.prepareStatement(sql)) {
+    /**
+     * Marks a recording as needing to be converted again from scratch, e.g. because its
+     * converted files have gone missing.
+     */
+    public static void markPending(String token, String file) {
 
+        String sql = "UPDATE recordings SET state = ?, attempts = 0 WHERE token = ? AND file = ?";
+
+        synchronized (LOCK) {
+            try {
+                PreparedStatement pstmt = prepare(sql);
+                pstmt.setString(1, ConversionState.PENDING.name());
+                pstmt.setString(2, token);
+                pstmt.setString(3, file);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                throw new AudioServerException("Error updating db: ", e);
+            }
+        }
+    }
+
+    public static void markFailed(String token, String file) {
+
+        String sql = "UPDATE recordings SET state = ? WHERE token = ? AND file = ?";
+
+        synchronized (LOCK) {
+            try {
+                PreparedStatement pstmt = prepare(sql);
+                pstmt.setString(1, ConversionState.FAILED.name());
+                pstmt.setString(2, token);
+                pstmt.setString(3, file);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                throw new AudioServerException("Error updating db: ", e);
+            }
+        }
+    }
+
+    public static void deleteRecording(String token, String file) {
+
+        String sql = "DELETE FROM recordings WHERE token = ? AND file = ?";
+        String selectSql = "SELECT name, converted_file, lowpass_file FROM recordings WHERE token = ? AND file = ?";
+
+        synchronized (LOCK) {
+            try {
+                PreparedStatement select = prepare(selectSql);
+                select.setString(1, token);
+                select.setString(2, file);
+                try (ResultSet rs = select.executeQuery()) {
+                    // Let the radios know that any converted files have gone
+                    while (rs.next()) {
+                        for (String path : new String[]{rs.getString("converted_file"), rs.getString("lowpass_file")}) {
+                            if (path != null) {
+                                addChange(token, rs.getString("name"), path, null, Change.Type.DELETED);
+                            }
+                        }
+                    }
+                }
+
+                PreparedStatement pstmt = prepare(sql);
+                pstmt.setString(1, token);
+                pstmt.setString(2, file);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                throw new AudioServerException("Error deleting from db: ", e);
+            }
+        }
+        RadioManifest.invalidate();
+    }
+
+    /**
+     * All of a user's recordings, oldest first
+     */
+    public static List<RecordingInfo> getRecordings(UserId userId) {
+
+        String sql = "SELECT * FROM recordings WHERE token = ? AND name = ? ORDER BY mtime";
+
+        ReadConnection reader = takeReader();
+        try {
+            PreparedStatement pstmt = reader.prepare(sql);
             pstmt.setString(1, userId.token);
             pstmt.setString(2, userId.name);
+            return toRecordings(pstmt);
+        } catch (SQLException e) {
+            throw new AudioServerException("Error querying db: ", e);
+        } finally {
+            READERS.add(reader);
+        }
+    }
+
+    /**
+     * Every recording stored under the given token regardless of the user name
+     */
+    public static List<RecordingInfo> getRecordings(String token) {
+
+        String sql = "SELECT * FROM recordings WHERE token = ?";
+
+        ReadConnection reader = takeReader();
+        try {
+            PreparedStatement pstmt = reader.prepare(sql);
+            pstmt.setString(1, token);
+            return toRecordings(pstmt);
+        } catch (SQLException e) {
+            throw new AudioServerException("Error querying db: ", e);
+        } finally {
+            READERS.add(reader);
+        }
+    }
+
+    /**
+     * Every recording that has finished converting, oldest first
+     */
+    public static List<RecordingInfo> getConvertedRecordings() {
+
+        String sql = "SELECT * FROM recordings WHERE state = ? ORDER BY mtime";
+
+        ReadConnection reader = takeReader();
+        try {
+            PreparedStatement pstmt = reader.prepare(sql);
+            pstmt.setString(1, ConversionState.CONVERTED.name());
+            return toRecordings(pstmt);
+        } catch (SQLException e) {
+            throw new AudioServerException("Error querying db: ", e);
+        } finally {
+            READERS.add(reader);
+        }
+    }
+
+    /**
+     * Every recording that hasn't been converted and hasn't yet used up its attempts,
+     * oldest first. This includes any that were being converted when the server stopped.
+     */
+    public static List<RecordingInfo> getRecordingsToConvert(int maxAttempts) {
 
-            ResultSet rs = pstmt.executeQuery();
+        String sql = "SELECT * FROM recordings WHERE state <> ? AND attempts < ? ORDER BY mtime";
 
-            if (rs.next()) {
-                return Optional.of(toStation(rs));
+        ReadConnection reader = takeReader();
+        try {
+            PreparedStatement pstmt = reader.prepare(sql);
+            pstmt.setString(1, ConversionState.CONVERTED.name());
+            pstmt.setInt(2, maxAttempts);
+            return toRecordings(pstmt);
+        } catch (SQLException e) {
+            throw new AudioServerException("Error querying db: ", e);
+        } finally {
+            READERS.add(reader);
+        }
+    }
+
+    private static List<RecordingInfo> toRecordings(PreparedStatement pstmt) throws SQLException {
+        try (ResultSet rs = pstmt.executeQuery()) {
+            final List<RecordingInfo> recordings = new ArrayList<>();
+            while (rs.next()) {
+                recordings.add(toRecording(rs));
             }
+            return recordings;
+        }
+    }
+
+    private static RecordingInfo toRecording(ResultSet rs) throws SQLException {
+        return new RecordingInfo(
+                rs.getString("token"),
+                rs.getString("name"),
+                rs.getInt("slot"),
+                rs.getString("file"),
+                rs.getString("converted_file"),
+                rs.getString("lowpass_file"),
+                rs.getLong("size"),
+                rs.getLong("mtime"),
+                rs.getString("hash"),
+                rs.getString("lowpass_hash"),
+                ConversionState.valueOf(rs.getString("state")),
+                rs.getInt("attempts"),
+                toOggInfo(rs));
+    }
+
+    private static OggInfo toOggInfo(ResultSet rs) throws SQLException {
+        long durationMs = rs.getLong("duration_ms");
+        if (rs.wasNull()) {
+            return null;
+        }
+        return new OggInfo(durationMs, rs.getInt("bitrate"), rs.getInt("channels"), rs.getInt("sample_rate"));
+    }
+
+    public static List<FileHash> getFileHashes() {
 
-            return Optional.empty();
+        String sql = "SELECT path, size, mtime, md5, crc32c, sha256 FROM file_hashes";
+
+        ReadConnection reader = takeReader();
+        try (ResultSet rs = reader.prepare(sql).executeQuery()) {
+            final List<FileHash> fileHashes = new ArrayList<>();
+            while (rs.next()) {
+                fileHashes.add(new FileHash(rs.getString("path"), rs.getLong("size"), rs.getLong("mtime"),
+                        rs.getString("md5"), rs.getString("crc32c"), rs.getString("sha256")));
+            }
+            return fileHashes;
         } catch (SQLException e) {
             throw new AudioServerException("Error querying db: ", e);
+        } finally {
+            READERS.add(reader);
         }
     }
 
-    public static int calculateFrequency(UserId userId) {
-        Optional<Station> existingStation = getStation(userId);
-        if (existingStation.isPresent()) {
-            return existingStation.get().frequency();
+    public static void putFileHash(FileHash fileHash) {
+
+        String sql = "INSERT OR REPLACE INTO file_hashes (path, size, mtime, md5, crc32c, sha256) VALUES (?, ?, ?, ?, ?, ?)";
+
+        synchronized (LOCK) {
+            try {
+                PreparedStatement pstmt = prepare(sql);
+                pstmt.setString(1, fileHash.path());
+                pstmt.setLong(2, fileHash.size());
+                pstmt.setLong(3, fileHash.mtime());
+                pstmt.setString(4, fileHash.md5());
+                pstmt.setString(5, fileHash.crc32c());
+                pstmt.setString(6, fileHash.sha256());
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                throw new AudioServerException("Error inserting into db: ", e);
+            }
         }
+    }
+
+    public static void deleteFileHash(String path) {
 
-        List<Station> stations = getStations();
-        Set<Integer> allFrequencies = stations.stream().map(Station::frequency).collect(Collectors.toSet());
+        String sql = "DELETE FROM file_hashes WHERE path = ?";
 
-        Random random = new Random();
-        int randomFrequency = 990;
-        for (int i = 0; i < MAX_FREQUENCIES; i++) {
-            randomFrequency = random.nextInt(870, 1070);
-            if (!allFrequencies.contains(randomFrequency)) {
-                break;
+        synchronized (LOCK) {
+            try {
+                PreparedStatement pstmt = prepare(sql);
+                pstmt.setString(1, path);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                throw new AudioServerException("Error deleting from db: ", e);
             }
         }
-        createStation(userId, randomFrequency);
-        return randomFrequency;
     }
 
-    private static Station toStation(ResultSet rs) throws SQLException {
-        return new Station(rs.getString("token"), rs.getString("name"), rs.getInt("frequency"));
+    public static void createUploadSession(UploadSession session) {
+
+        String sql = "INSERT INTO upload_sessions (id, token, name, extension, length, updated) VALUES (?, ?, ?, ?, ?, ?)";
+
+        synchronized (LOCK) {
+            try {
+                PreparedStatement pstmt = prepare(sql);
+                pstmt.setString(1, session.id());
+                pstmt.setString(2, session.token());
+                pstmt.setString(3, session.name());
+                pstmt.setString(4, session.extension());
+                if (session.length() == -1) {
+                    pstmt.setNull(5, Types.INTEGER);
+                } else {
+                    pstmt.setLong(5, session.length());
+                }
+                pstmt.setLong(6, session.updated());
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                throw new AudioServerException("Error inserting into db: ", e);
+            }
+        }
+    }
+
+    public static Optional<UploadSession> getUploadSession(String id) {
+
+        String sql = "SELECT id, token, name, extension, length, updated FROM upload_sessions WHERE id = ?";
+
+        ReadConnection reader = takeReader();
+        try {
+            PreparedStatement pstmt = reader.prepare(sql);
+            pstmt.setString(1, id);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? Optional.of(toUploadSession(rs)) : Optional.empty();
+            }
+        } catch (SQLException e) {
+            throw new AudioServerException("Error querying db: ", e);
+        } finally {
+            READERS.add(reader);
+        }
+    }
+
+    public static List<UploadSession> getUploadSessionsUpdatedBefore(long time) {
+
+        String sql = "SELECT id, token, name, extension, length, updated FROM upload_sessions WHERE updated < ?";
+
+        ReadConnection reader = takeReader();
+        try {
+            PreparedStatement pstmt = reader.prepare(sql);
+            pstmt.setLong(1, time);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                final List<UploadSession> sessions = new ArrayList<>();
+                while (rs.next()) {
+                    sessions.add(toUploadSession(rs));
+                }
+                return sessions;
+            }
+        } catch (SQLException e) {
+            throw new AudioServerException("Error querying db: ", e);
+        } finally {
+            READERS.add(reader);
+        }
+    }
+
+    public static void touchUploadSession(String id, long updated) {
+
+        String sql = "UPDATE upload_sessions SET updated = ? WHERE id = ?";
+
+        synchronized (LOCK) {
+            try {
+                PreparedStatement pstmt = prepare(sql);
+                pstmt.setLong(1, updated);
+                pstmt.setString(2, id);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                throw new AudioServerException("Error updating db: ", e);
+            }
+        }
+    }
+
+    public static void deleteUploadSession(String id) {
+
+        String sql = "DELETE FROM upload_sessions WHERE id = ?";
+
+        synchronized (LOCK) {
+            try {
+                PreparedStatement pstmt = prepare(sql);
+                pstmt.setString(1, id);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                throw new AudioServerException("Error deleting from db: ", e);
+            }
+        }
+    }
+
+    private static UploadSession toUploadSession(ResultSet rs) throws SQLException {
+        long length = rs.getLong("length");
+        if (rs.wasNull()) {
+            length = -1;
+        }
+        return new UploadSession(rs.getString("id"), rs.getString("token"), rs.getString("name"),
+                rs.getString("extension"), length, rs.getLong("updated"));
+    }
+
+    private static String getRecordingName(String token, String file) throws SQLException {
+        PreparedStatement pstmt = prepare("SELECT name FROM recordings WHERE token = ? AND file = ?");
+        pstmt.setString(1, token);
+        pstmt.setString(2, file);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? rs.getString("name") : null;
+        }
+    }
+
+    private static void addChange(String token, String name, String path, String hash, Change.Type type) throws SQLException {
+        PreparedStatement pstmt = prepare("INSERT INTO changes (token, name, path, hash, type) VALUES (?, ?, ?, ?, ?)");
+        pstmt.setString(1, token);
+        pstmt.setString(2, name);
+        pstmt.setString(3, path);
+        pstmt.setString(4, hash);
+        pstmt.setString(5, type.name());
+        pstmt.executeUpdate();
+    }
+
+    public static long getLatestChangeVersion() {
+
+        String sql = "SELECT COALESCE(MAX(version), 0) AS version FROM changes";
+
+        ReadConnection reader = takeReader();
+        try (ResultSet rs = reader.prepare(sql).executeQuery()) {
+            return rs.next() ? rs.getLong("version") : 0;
+        } catch (SQLException e) {
+            throw new AudioServerException("Error querying db: ", e);
+        } finally {
+            READERS.add(reader);
+        }
+    }
+
+    /**
+     * Every change made after the given version, oldest first
+     */
+    public static List<Change> getChangesSince(long version) {
+
+        String sql = "SELECT version, token, name, path, hash, type FROM changes WHERE version > ? ORDER BY version";
+
+        ReadConnection reader = takeReader();
+        try {
+            PreparedStatement pstmt = reader.prepare(sql);
+            pstmt.setLong(1, version);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                final List<Change> changes = new ArrayList<>();
+                while (rs.next()) {
+                    changes.add(new Change(rs.getLong("version"), rs.getString("token"), rs.getString("name"),
+                            rs.getString("path"), rs.getString("hash"), Change.Type.valueOf(rs.getString("type"))));
+                }
+                return changes;
+            }
+        } catch (SQLException e) {
+            throw new AudioServerException("Error querying db: ", e);
+        } finally {
+            READERS.add(reader);
+        }
+    }
+
+    /**
+     * The latest change version that has been deleted from the change log, or 0 if none have
+     */
+    public static long getCompactedChangeVersion() {
+
+        String sql = "SELECT COALESCE(MAX(version), 0) AS version FROM compacted_changes";
+
+        ReadConnection reader = takeReader();
+        try (ResultSet rs = reader.prepare(sql).executeQuery()) {
+            return rs.next() ? rs.getLong("version") : 0;
+        } catch (SQLException e) {
+            throw new AudioServerException("Error querying db: ", e);
+        } finally {
+            READERS.add(reader);
+        }
+    }
+
+    /**
+     * Deletes the changes up to and including the given version. The latest change is always
+     * kept so the change log version carries on from where it was.
+     */
+    public static void compactChanges(long version) {
+
+        String latestSql = "SELECT COALESCE(MAX(version), 0) AS version FROM changes";
+        String deleteSql = "DELETE FROM changes WHERE version <= ?";
+        String insertSql = "INSERT OR IGNORE INTO compacted_changes (version, time) VALUES (?, ?)";
+
+        synchronized (LOCK) {
+            try {
+                long compactTo;
+                try (ResultSet rs = prepare(latestSql).executeQuery()) {
+                    compactTo = Math.min(version, rs.next() ? rs.getLong("version") - 1 : 0);
+                }
+                if (compactTo <= 0) {
+                    return;
+                }
+                PreparedStatement delete = prepare(deleteSql);
+                delete.setLong(1, compactTo);
+                int deleted = delete.executeUpdate();
+                PreparedStatement insert = prepare(insertSql);
+                insert.setLong(1, compactTo);
+                insert.setLong(2, System.currentTimeMillis());
+                insert.executeUpdate();
+                LOG.info("Deleted " + deleted + " changes up to version " + compactTo);
+            } catch (SQLException e) {
+                throw new AudioServerException("Error deleting from db: ", e);
+            }
+        }
     }
 }
@@ -0,0 +1,74 @@
+package fm.francoisefm;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves converted files from the content store by their digest. The contents behind a
+ * digest can never change so responses can be cached forever.
+ */
+public class StoreServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger("StoreServlet");
+
+    private static final Pattern STORE_FILE_PATTERN = Pattern.compile("^/([0-9a-f]{64})\\.ogg$");
+
+    private static final String CACHE_FOREVER = "public, max-age=31536000, immutable";
+
+    @Override
+    protected void doOptions(HttpServletRequest request, HttpServletResponse response) {
+        LOG.info("OPTIONS: " + ServletHelper.getRequestURL(request));
+
+        ServletHelper.setAllowHeaders(request, response);
+
+        response.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) {
+        long startTime = System.currentTimeMillis();
+        LOG.info("GET " + ServletHelper.getRequestURL(request));
+
+        try {
+            handleGet(request, response);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Error handling GET", e);
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        }
+        ServletHelper.logWhenComplete(LOG, "GET", startTime, request, response);
+    }
+
+    private void handleGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ServletHelper.validateQueryString(request);
+        ServletHelper.setAllowHeaders(request, response);
+
+        String digest = getDigest(request);
+        Path file = ContentStore.find(digest)
+                .orElseThrow(() -> new AudioServerException("Not in the store: " + digest));
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        FileIndex.FileInfo fileInfo = new FileIndex.FileInfo(attributes.size(), attributes.lastModifiedTime().toMillis());
+
+        response.setHeader("Cache-Control", CACHE_FOREVER);
+        new FileResponse(() -> new AsyncFileWriter(file, ServletHelper.AUDIO_FILE_CACHE.get(file, fileInfo)),
+                "audio/ogg", fileInfo, "\"" + digest + "\"")
+                .send(request, response);
+    }
+
+    private String getDigest(HttpServletRequest request) {
+        String path = request.getPathInfo();
+        Matcher matcher = STORE_FILE_PATTERN.matcher(path == null ? "" : path);
+        if (!matcher.matches()) {
+            throw new AudioServerException("Invalid path: " + path);
+        }
+        return matcher.group(1);
+    }
+}
@@ -0,0 +1,154 @@
+package fm.francoisefm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts a recording while it is still being uploaded. The upload is written to its
+ * temp file as usual and this follows along behind it, feeding each new chunk of the
+ * file into ffmpeg's stdin. Reading back from the file rather than being handed the bytes
+ * means a slow ffmpeg never holds up the upload or buffers it in memory.
+ * If ffmpeg fails for any reason the recording is queued for a normal conversion instead.
+ */
+class StreamingConversion {
+
+    private static final Logger LOG = Logger.getLogger("AudioConverter");
+
+    private static final int FEED_CHUNK = 64 * 1024;
+
+    private final AudioConverter converter;
+    private final File recording;
+    private final FileChannel upload;
+    private final Process process;
+
+    // Guarded by this
+    private long bytesWritten;
+    private boolean finished;
+    private boolean aborted;
+
+    /**
+     * @param upload the file the upload is being written to. It's opened up front as it will
+     *               be moved to the recording's name as soon as the upload is complete.
+     */
+    StreamingConversion(AudioConverter converter, File recording, FileChannel upload, Process process) {
+        this.converter = converter;
+        this.recording = recording;
+        this.upload = upload;
+        this.process = process;
+    }
+
+    /**
+     * Called by the upload each time more of the file has been written.
+     */
+    synchronized void written(long bytesWritten) {
+        this.bytesWritten = bytesWritten;
+        notifyAll();
+    }
+
+    /**
+     * Called once the whole upload has been written and the recording added to the db.
+     */
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    synchronized void abort() {
+        aborted = true;
+        notifyAll();
+    }
+
+    void logOutput() {
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                LOG.info(line);
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not read ffmpeg output", e);
+        }
+    }
+
+    void run() {
+        long startTime = System.currentTimeMillis();
+        boolean converted = false;
+        try {
+            feed();
+            int exitCode = process.waitFor();
+            LOG.info("Streaming conversion of " + recording + " exited with code " + exitCode);
+            converted = exitCode == 0;
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Streaming conversion of " + recording + " failed", e);
+        } catch (InterruptedException e) {
+            LOG.warning("Interrupted while converting " + recording);
+            Thread.currentThread().interrupt();
+        } finally {
+            process.destroy();
+        }
+
+        // Even if ffmpeg gave up we have to wait to find out if the upload worked
+        if (!awaitUpload()) {
+            LOG.info("Upload of " + recording + " was aborted. Deleting converted files.");
+            converter.replaceConvertedFiles(recording, false);
+            converter.finishStreaming(recording, false);
+        } else if (converter.replaceConvertedFiles(recording, converted)) {
+            long timeTaken = System.currentTimeMillis() - startTime;
+            LOG.info("Converted " + recording + " while uploading in " + timeTaken + "ms");
+            converter.finishConversion(recording, true);
+            converter.finishStreaming(recording, false);
+        } else {
+            LOG.warning("Queueing " + recording + " for a normal conversion");
+            converter.finishStreaming(recording, true);
+        }
+    }
+
+    private void feed() throws IOException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocate(FEED_CHUNK);
+        try (FileChannel input = upload;
+             OutputStream stdin = process.getOutputStream()) {
+            long position = 0;
+            while (true) {
+                long available;
+                synchronized (this) {
+                    while (!finished && !aborted && bytesWritten == position) {
+                        wait();
+                    }
+                    if (aborted) {
+                        return;
+                    }
+                    available = bytesWritten;
+                }
+                if (position == available) {
+                    // Finished and everything has been fed in. Closing stdin lets ffmpeg finish.
+                    return;
+                }
+                buffer.clear().limit((int) Math.min(FEED_CHUNK, available - position));
+                int bytesRead = input.read(buffer, position);
+                if (bytesRead <= 0) {
+                    throw new IOException("Could not read " + recording + " at " + position);
+                }
+                stdin.write(buffer.array(), 0, bytesRead);
+                position += bytesRead;
+            }
+        }
+    }
+
+    private synchronized boolean awaitUpload() {
+        while (!finished && !aborted) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !aborted;
+    }
+}
@@ -0,0 +1,19 @@
+package fm.francoisefm;
+
+import java.nio.file.Path;
+
+/**
+ * A resumable upload in progress. The bytes received so far are kept in uploads/id.part so
+ * the current offset is always the size of that file. Length is -1 if the client didn't
+ * say how big the recording will be.
+ */
+record UploadSession(String id, String token, String name, String extension, long length, long updated) {
+
+    Path file() {
+        return ServletHelper.UPLOADS.resolve(id + ".part");
+    }
+
+    boolean belongsTo(UserId userId) {
+        return token.equals(userId.token) && name.equals(userId.name);
+    }
+}
@@ -0,0 +1,452 @@
+package fm.francoisefm;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resumable uploads for long recordings, so a dropped connection only means resending the
+ * bytes that were lost rather than the whole file.
+ *
+ * POST /audio/uploads            starts a session (Content-Type and optional Upload-Length)
+ * PATCH /audio/uploads/id        appends the body at Upload-Offset
+ * HEAD /audio/uploads/id         returns the current Upload-Offset
+ * POST /audio/uploads/id         finishes the upload and converts the recording
+ * DELETE /audio/uploads/id       abandons the upload
+ */
+public class UploadsServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger("UploadsServlet");
+
+    private static final Pattern SESSION_PATH = Pattern.compile("^/(" + ServletHelper.UUID_PATTERN + ")$");
+
+    private static final long CLEANUP_INTERVAL_MINUTES = 60;
+
+    // Sessions a request is working on. Only one chunk can be written to a session at a time
+    // and a session can't be finished or deleted while a chunk is being written.
+    private static final Set<String> ACTIVE_SESSIONS = ConcurrentHashMap.newKeySet();
+
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        // HttpServlet doesn't know about PATCH
+        if (request.getMethod().equals("PATCH")) {
+            doPatch(request, response);
+        } else {
+            super.service(request, response);
+        }
+    }
+
+    @Override
+    protected void doOptions(HttpServletRequest request, HttpServletResponse response) {
+        LOG.info("OPTIONS: " + ServletHelper.getRequestURL(request));
+
+        ServletHelper.setAllowHeaders(request, response);
+
+        response.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) {
+        long startTime = System.currentTimeMillis();
+        LOG.info("POST " + ServletHelper.getRequestURL(request));
+
+        try {
+            if (request.getPathInfo() == null) {
+                handleCreate(request, response);
+            } else {
+                handleFinish(request, response);
+            }
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Error handling POST", e);
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        }
+        ServletHelper.logWhenComplete(LOG, "POST", startTime, request, response);
+    }
+
+    @Override
+    protected void doHead(HttpServletRequest request, HttpServletResponse response) {
+        long startTime = System.currentTimeMillis();
+        LOG.info("HEAD " + ServletHelper.getRequestURL(request));
+
+        try {
+            handleHead(request, response);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Error handling HEAD", e);
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        }
+        ServletHelper.logWhenComplete(LOG, "HEAD", startTime, request, response);
+    }
+
+    private void doPatch(HttpServletRequest request, HttpServletResponse response) {
+        long startTime = System.currentTimeMillis();
+        LOG.info("PATCH " + ServletHelper.getRequestURL(request));
+
+        try {
+            handlePatch(request, response);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Error handling PATCH", e);
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        }
+        ServletHelper.logWhenComplete(LOG, "PATCH", startTime, request, response);
+    }
+
+    @Override
+    protected void doDelete(HttpServletRequest request, HttpServletResponse response) {
+        long startTime = System.currentTimeMillis();
+        LOG.info("DELETE " + ServletHelper.getRequestURL(request));
+
+        try {
+            handleDelete(request, response);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Error handling DELETE", e);
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        }
+        ServletHelper.logWhenComplete(LOG, "DELETE", startTime, request, response);
+    }
+
+    private void handleCreate(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ServletHelper.validateQueryString(request);
+        ServletHelper.setAllowHeaders(request, response);
+
+        UserId userId = ServletHelper.getUserId(request);
+        String fileExtension = ServletHelper.getFileExtension(request.getHeader("Content-Type"));
+        long length = getLongHeader(request, "Upload-Length");
+        if (length > AllRecordingsServlet.MAX_FILE_SIZE) {
+            LOG.warning("Rejecting upload of " + length + " bytes");
+            response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+
+        UploadSession session = new UploadSession(UUID.randomUUID().toString(), userId.token, userId.name,
+                fileExtension, length, System.currentTimeMillis());
+        Files.createFile(session.file());
+        StationsDb.createUploadSession(session);
+        LOG.info("Started upload " + session.id() + " for " + userId);
+
+        response.setStatus(HttpServletResponse.SC_CREATED);
+        response.setHeader("Location", "/audio/uploads/" + session.id());
+        response.setHeader("Upload-Offset", "0");
+    }
+
+    private void handleHead(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ServletHelper.setAllowHeaders(request, response);
+
+        UploadSession session = getSession(request);
+        response.setHeader("Cache-Control", "no-store");
+        response.setHeader("Upload-Offset", String.valueOf(Files.size(session.file())));
+        if (session.length() != -1) {
+            response.setHeader("Upload-Length", String.valueOf(session.length()));
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    private void handlePatch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ServletHelper.setAllowHeaders(request, response);
+
+        UploadSession session = getSession(request);
+        if (!ACTIVE_SESSIONS.add(session.id())) {
+            LOG.warning("Upload " + session.id() + " already has a chunk in progress");
+            response.setStatus(HttpServletResponse.SC_CONFLICT);
+            return;
+        }
+        try {
+            long offset = getLongHeader(request, "Upload-Offset");
+            long currentOffset = Files.size(session.file());
+            response.setHeader("Upload-Offset", String.valueOf(currentOffset));
+            if (offset != currentOffset) {
+                // The client has to find out where we got to and carry on from there
+                LOG.warning("Upload " + session.id() + " is at " + currentOffset + " but chunk starts at " + offset);
+                response.setStatus(HttpServletResponse.SC_CONFLICT);
+                ACTIVE_SESSIONS.remove(session.id());
+                return;
+            }
+            long contentLength = request.getContentLengthLong();
+            if (contentLength != -1 && offset + contentLength > maxLength(session)) {
+                LOG.warning("Chunk of " + contentLength + " bytes would make upload " + session.id() + " too big");
+                response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                ACTIVE_SESSIONS.remove(session.id());
+                return;
+            }
+
+            FileChannel channel = FileChannel.open(session.file(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            AsyncContext asyncContext = request.startAsync();
+            // Slow clients are dealt with by the connector's idle timeout instead
+            asyncContext.setTimeout(0);
+            request.getInputStream().setReadListener(new ChunkListener(asyncContext, request.getInputStream(), channel, session, offset));
+        } catch (Exception e) {
+            ACTIVE_SESSIONS.remove(session.id());
+            throw e;
+        }
+    }
+
+    private void handleFinish(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ServletHelper.setAllowHeaders(request, response);
+
+        UploadSession session = getSession(request);
+        if (ServletHelper.rejectIfConversionQueueFull(response)) {
+            // The session is kept so the client can try finishing it again later
+            return;
+        }
+        if (!ACTIVE_SESSIONS.add(session.id())) {
+            response.setStatus(HttpServletResponse.SC_CONFLICT);
+            return;
+        }
+        try {
+            finishSession(response, session);
+        } finally {
+            ACTIVE_SESSIONS.remove(session.id());
+        }
+    }
+
+    private void finishSession(HttpServletResponse response, UploadSession session) throws IOException {
+        long size = Files.size(session.file());
+        if (session.length() != -1 && size != session.length()) {
+            LOG.warning("Upload " + session.id() + " is incomplete: " + size + " of " + session.length() + " bytes");
+            response.setHeader("Upload-Offset", String.valueOf(size));
+            response.setStatus(HttpServletResponse.SC_CONFLICT);
+            return;
+        }
+        if (size == 0) {
+            // Nothing was ever sent so there is no recording to keep
+            LOG.warning("Upload " + session.id() + " is empty");
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        UserId userId = new UserId(session.name(), session.token());
+        File audioFile = ServletHelper.getNewAudioFile(userId, session.extension());
+        try {
+            moveIntoPlace(session.file(), audioFile);
+        } catch (IOException e) {
+            ServletHelper.RECORDING_SLOTS.release(userId.token, audioFile.getName());
+            throw e;
+        }
+        StationsDb.deleteUploadSession(session.id());
+        ServletHelper.RECORDINGS_INDEX.refresh(audioFile);
+        StationsDb.addRecording(userId, Recording.slotOf(audioFile.getName()), audioFile);
+        LOG.info("Finished upload " + session.id() + " as " + audioFile);
+
+        LOG.info("Converting file to ogg: " + audioFile);
+        ServletHelper.AUDIO_CONVERTER.convertToOgg(audioFile, AudioConverter.Priority.UPLOAD);
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setHeader("Location", "/audio/" + userId.token + "/" + URLEncoder.encode(audioFile.getName(), StandardCharsets.UTF_8));
+    }
+
+    private void handleDelete(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ServletHelper.setAllowHeaders(request, response);
+
+        UploadSession session = getSession(request);
+        if (!ACTIVE_SESSIONS.add(session.id())) {
+            response.setStatus(HttpServletResponse.SC_CONFLICT);
+            return;
+        }
+        try {
+            deleteSession(session);
+        } finally {
+            ACTIVE_SESSIONS.remove(session.id());
+        }
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    private UploadSession getSession(HttpServletRequest request) {
+        ServletHelper.validateQueryString(request);
+        String path = request.getPathInfo();
+        Matcher matcher = SESSION_PATH.matcher(path == null ? "" : path);
+        if (!matcher.matches()) {
+            throw new AudioServerException("Invalid path: " + path);
+        }
+        UserId userId = ServletHelper.getUserId(request);
+        Optional<UploadSession> session = StationsDb.getUploadSession(matcher.group(1));
+        if (session.isEmpty() || !session.get().belongsTo(userId)) {
+            throw new AudioServerException("No upload " + matcher.group(1) + " for " + userId);
+        }
+        return session.get();
+    }
+
+    private long getLongHeader(HttpServletRequest request, String name) {
+        String value = request.getHeader(name);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            long number = Long.parseLong(value.trim());
+            if (number < 0) {
+                throw new AudioServerException("Negative " + name + ": " + value);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new AudioServerException("Invalid " + name + ": " + value);
+        }
+    }
+
+    private static long maxLength(UploadSession session) {
+        return session.length() == -1 ? AllRecordingsServlet.MAX_FILE_SIZE : session.length();
+    }
+
+    private static void moveIntoPlace(Path upload, File audioFile) throws IOException {
+        try {
+            Files.move(upload, audioFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // uploads/ is on a different file system so copy next to the recording first
+            Path tempFile = Recording.uploadTempFile(audioFile).toPath();
+            Files.copy(upload, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempFile, audioFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(upload);
+        }
+    }
+
+    private static void deleteSession(UploadSession session) throws IOException {
+        Files.deleteIfExists(session.file());
+        StationsDb.deleteUploadSession(session.id());
+    }
+
+    /**
+     * Appends a chunk to an upload as the container receives it. If the connection drops
+     * part way through, whatever arrived is kept and the client can carry on from there.
+     */
+    private static class ChunkListener implements ReadListener {
+
+        private final AsyncContext asyncContext;
+        private final ServletInputStream inputStream;
+        private final FileChannel channel;
+        private final UploadSession session;
+        private final byte[] buffer = new byte[65536];
+        private long offset;
+        private boolean finished;
+
+        ChunkListener(AsyncContext asyncContext, ServletInputStream inputStream, FileChannel channel, UploadSession session, long offset) {
+            this.asyncContext = asyncContext;
+            this.inputStream = inputStream;
+            this.channel = channel;
+            this.session = session;
+            this.offset = offset;
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            while (!finished && inputStream.isReady() && !inputStream.isFinished()) {
+                int bytesRead = inputStream.read(buffer);
+                if (bytesRead == -1) {
+                    break;
+                }
+                if (offset + bytesRead > maxLength(session)) {
+                    // None of this read is written, so the offset we send back is still what's on disk
+                    LOG.warning("Upload " + session.id() + " is bigger than allowed");
+                    finish(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                    return;
+                }
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                offset += bytesRead;
+            }
+        }
+
+        @Override
+        public void onAllDataRead() {
+            finish(HttpServletResponse.SC_NO_CONTENT);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            LOG.log(Level.WARNING, "Chunk for upload " + session.id() + " stopped at " + offset, t);
+            finish(HttpServletResponse.SC_NOT_FOUND);
+        }
+
+        private void finish(int status) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            try {
+                channel.close();
+                StationsDb.touchUploadSession(session.id(), System.currentTimeMillis());
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Error finishing chunk for upload " + session.id(), e);
+                status = HttpServletResponse.SC_NOT_FOUND;
+            } finally {
+                ACTIVE_SESSIONS.remove(session.id());
+            }
+            HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+            response.setHeader("Upload-Offset", String.valueOf(offset));
+            response.setStatus(status);
+            asyncContext.complete();
+        }
+    }
+
+    /**
+     * Deletes uploads that haven't had any data for UPLOAD_EXPIRY_HOURS (default 24) and any
+     * files in uploads/ that don't belong to a session.
+     */
+    public static void startCleanup() {
+        long expiryMillis = TimeUnit.HOURS.toMillis(Long.parseLong(ServletHelper.PROPERTIES.getProperty("UPLOAD_EXPIRY_HOURS", "24")));
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "UploadsCleanup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> cleanup(expiryMillis), 0, CLEANUP_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    private static void cleanup(long expiryMillis) {
+        try {
+            long cutoff = System.currentTimeMillis() - expiryMillis;
+            for (UploadSession session : StationsDb.getUploadSessionsUpdatedBefore(cutoff)) {
+                // Claimed like a request would so a chunk can't start while it's deleted
+                if (!ACTIVE_SESSIONS.add(session.id())) {
+                    continue;
+                }
+                try {
+                    // A chunk may have finished since the expired sessions were listed
+                    Optional<UploadSession> current = StationsDb.getUploadSession(session.id());
+                    if (current.isPresent() && current.get().updated() < cutoff) {
+                        LOG.info("Deleting abandoned upload " + session.id() + " for " + session.token());
+                        deleteSession(current.get());
+                    }
+                } finally {
+                    ACTIVE_SESSIONS.remove(session.id());
+                }
+            }
+            File[] files = ServletHelper.UPLOADS.toFile().listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String id = file.getName().replaceFirst("\\.part$", "");
+                    if (file.lastModified() < cutoff && StationsDb.getUploadSession(id).isEmpty()) {
+                        LOG.info("Deleting orphaned upload file " + file);
+                        Files.deleteIfExists(file.toPath());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Error cleaning up uploads", e);
+        }
+    }
+}
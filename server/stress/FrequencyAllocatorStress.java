@@ -0,0 +1,145 @@
+package fm.francoisefm;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hammers a FrequencyAllocator from many threads at once and checks that no frequency is
+ * ever handed out twice. Run it with stress_frequencies.sh.
+ * usage: FrequencyAllocatorStress [rounds] [threads]
+ */
+public class FrequencyAllocatorStress {
+
+    private static final int MIN_FREQUENCY = 870;
+    private static final int SLOTS = 200;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors() * 2;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < rounds; round++) {
+                allocateEverything(executor, threads, round);
+                releaseAndReallocate(executor, threads, round);
+                claimSameFrequency(executor, threads, round);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println("OK: " + rounds + " rounds on " + threads + " threads");
+    }
+
+    /**
+     * Every thread allocates until the band is full. Between them they must get each
+     * frequency exactly once.
+     */
+    private static void allocateEverything(ExecutorService executor, int threads, int round) throws Exception {
+        FrequencyAllocator allocator = new FrequencyAllocator(MIN_FREQUENCY, SLOTS);
+        List<List<Integer>> allocated = runTogether(executor, threads, () -> {
+            List<Integer> frequencies = new ArrayList<>();
+            for (OptionalInt f = allocator.allocate(); f.isPresent(); f = allocator.allocate()) {
+                frequencies.add(f.getAsInt());
+            }
+            return frequencies;
+        });
+        checkEachOnce(allocated, SLOTS, "allocating everything", round);
+    }
+
+    /**
+     * Starting from a full band, every thread releases its own frequencies and allocates
+     * the same number again while the others do the same.
+     */
+    private static void releaseAndReallocate(ExecutorService executor, int threads, int round) throws Exception {
+        FrequencyAllocator allocator = new FrequencyAllocator(MIN_FREQUENCY, SLOTS);
+        List<List<Integer>> owned = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            owned.add(new ArrayList<>());
+        }
+        for (int slot = 0; slot < SLOTS; slot++) {
+            allocator.claim(MIN_FREQUENCY + slot);
+            owned.get(slot % threads).add(MIN_FREQUENCY + slot);
+        }
+        AtomicInteger next = new AtomicInteger();
+        List<List<Integer>> reallocated = runTogether(executor, threads, () -> {
+            List<Integer> mine = owned.get(next.getAndIncrement());
+            List<Integer> frequencies = new ArrayList<>();
+            for (int frequency : mine) {
+                allocator.release(frequency);
+                OptionalInt f = allocator.allocate();
+                if (f.isEmpty()) {
+                    throw new IllegalStateException("No frequency free straight after releasing " + frequency);
+                }
+                frequencies.add(f.getAsInt());
+            }
+            return frequencies;
+        });
+        checkEachOnce(reallocated, SLOTS, "releasing and reallocating", round);
+        if (allocator.allocate().isPresent()) {
+            throw new IllegalStateException("Round " + round + ": band should be full after reallocating");
+        }
+    }
+
+    /**
+     * Every thread claims the same frequency. Exactly one of them should get it.
+     */
+    private static void claimSameFrequency(ExecutorService executor, int threads, int round) throws Exception {
+        FrequencyAllocator allocator = new FrequencyAllocator(MIN_FREQUENCY, SLOTS);
+        int frequency = MIN_FREQUENCY + round % SLOTS;
+        List<Boolean> claimed = runTogether(executor, threads, () -> allocator.claim(frequency));
+        long winners = claimed.stream().filter(c -> c).count();
+        if (winners != 1) {
+            throw new IllegalStateException("Round " + round + ": " + winners + " threads claimed " + frequency);
+        }
+    }
+
+    private static void checkEachOnce(List<List<Integer>> allocated, int expected, String what, int round) {
+        BitSet seen = new BitSet(SLOTS);
+        int total = 0;
+        for (List<Integer> frequencies : allocated) {
+            for (int frequency : frequencies) {
+                int slot = frequency - MIN_FREQUENCY;
+                if (slot < 0 || slot >= SLOTS) {
+                    throw new IllegalStateException("Round " + round + ", " + what + ": out of range " + frequency);
+                }
+                if (seen.get(slot)) {
+                    throw new IllegalStateException("Round " + round + ", " + what + ": " + frequency + " handed out twice");
+                }
+                seen.set(slot);
+                total++;
+            }
+        }
+        if (total != expected) {
+            throw new IllegalStateException("Round " + round + ", " + what + ": handed out " + total + " of " + expected);
+        }
+    }
+
+    /**
+     * Runs the task on every thread, releasing them all at the same moment
+     */
+    private static <T> List<T> runTogether(ExecutorService executor, int threads, Task<T> task) throws Exception {
+        CyclicBarrier start = new CyclicBarrier(threads);
+        List<Future<T>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                return task.run();
+            }));
+        }
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            results.add(future.get());
+        }
+        return results;
+    }
+
+    private interface Task<T> {
+        T run() throws Exception;
+    }
+}
@@ -0,0 +1,10 @@
+#!/bin/bash
+# Checks that FrequencyAllocator never hands out the same frequency twice under contention.
+# Build the server first (mvn package) so target/classes is up to date.
+# usage: stress_frequencies.sh [rounds] [threads]
+set -e
+cd "$(dirname "$0")"
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+javac -cp target/classes -d "$out" stress/FrequencyAllocatorStress.java
+java -cp "target/classes:$out" fm.francoisefm.FrequencyAllocatorStress "$@"